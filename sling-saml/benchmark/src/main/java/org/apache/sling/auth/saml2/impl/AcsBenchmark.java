@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.sling.auth.saml2.sp.KeyPairCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
+import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Throughput of the assertion consumer service with a signed and encrypted response:
+ * the decoding of the posted response, the decryption of the assertion and the
+ * verification of its signature.
+ * <p>
+ * <code>decode</code> decodes the response from the request parameter, <code>decodeStreaming</code>
+ * directly from the posted form body.
+ * <p>
+ * The <code>legacy...</code> benchmark creates the decrypter and the signature profile validator
+ * per response as it was done before they were built once per configuration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcsBenchmark {
+
+    private AuthenticationHandlerSAML2Impl handler;
+    private HttpServletRequest request;
+    private HttpServletRequest streamingRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.initializeOpenSaml();
+        final File directory = BenchmarkSupport.tempDirectory();
+        final Map<String, Object> config = BenchmarkSupport.jksConfig(directory);
+        handler = BenchmarkSupport.activateHandler(directory, config);
+        final Credential idpCredential = KeyPairCredentials.getCredential(
+                (String) config.get("jksFileLocation"), JKSHelper.KEYSTORE_TEST_PASSWORD,
+                JKSHelper.IDP_ALIAS + "key", JKSHelper.KEYSTORE_TEST_PASSWORD);
+        final String samlResponse = SamlResponseFixture.signedAndEncrypted(
+                idpCredential, (X509Credential) handler.getSpKeypair(), handler.getACSURL());
+        request = mock(HttpServletRequest.class, withSettings().stubOnly());
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getParameter("SAMLResponse")).thenReturn(samlResponse);
+        final byte[] form = ("SAMLResponse=" + URLEncoder.encode(samlResponse, "UTF-8"))
+                .getBytes(StandardCharsets.US_ASCII);
+        streamingRequest = mock(HttpServletRequest.class, withSettings().stubOnly());
+        when(streamingRequest.getMethod()).thenReturn("POST");
+        when(streamingRequest.getContentType()).thenReturn("application/x-www-form-urlencoded");
+        when(streamingRequest.getContentLength()).thenReturn(form.length);
+        when(streamingRequest.getInputStream()).thenAnswer(invocation -> {
+            final ByteArrayInputStream body = new ByteArrayInputStream(form);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return body.read();
+                }
+
+                @Override
+                public int read(final byte[] buffer, final int offset, final int length) {
+                    return body.read(buffer, offset, length);
+                }
+            };
+        });
+        // fail fast if the fixture does not pass the complete chain
+        decodeDecryptVerify();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.deactivate();
+    }
+
+    @Benchmark
+    public MessageContext decode() {
+        return handler.decodeHttpPostSamlResp(request);
+    }
+
+    @Benchmark
+    public MessageContext decodeStreaming() {
+        return handler.decodeHttpPostSamlResp(streamingRequest);
+    }
+
+    @Benchmark
+    public Assertion decodeDecryptVerify() {
+        final MessageContext messageContext = handler.decodeHttpPostSamlResp(request);
+        final Response response = (Response) messageContext.getMessage();
+        final Assertion assertion = handler.decryptAssertion(response.getEncryptedAssertions().get(0));
+        handler.verifyAssertionSignature(assertion);
+        return assertion;
+    }
+
+    @Benchmark
+    public Assertion legacyDecodeDecryptVerify() throws Exception {
+        final MessageContext messageContext = handler.decodeHttpPostSamlResp(request);
+        final Response response = (Response) messageContext.getMessage();
+        final Decrypter decrypter = new Decrypter(null,
+                new StaticKeyInfoCredentialResolver(handler.getSpKeypair()), new InlineEncryptedKeyResolver());
+        decrypter.setRootInNewDocument(true);
+        final Assertion assertion = decrypter.decrypt(response.getEncryptedAssertions().get(0));
+        new SAMLSignatureProfileValidator().validate(assertion.getSignature());
+        SignatureValidator.validate(assertion.getSignature(), handler.getIdpVerificationCert());
+        return assertion;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Throughput of the login redirect: the creation of the AuthnRequest and its HTTP-Redirect
+ * encoding (deflate, base64, url encoding and - if configured - the signature), with
+ * OpenSAML and with the pre-marshalled {@link AuthnRequestTemplate}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthnRequestBenchmark {
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    private AuthenticationHandlerSAML2Impl handler;
+    private AuthnRequestTemplate template;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.initializeOpenSaml();
+        final File directory = BenchmarkSupport.tempDirectory();
+        final Map<String, Object> config = signed
+                ? BenchmarkSupport.jksConfig(directory)
+                : Collections.singletonMap("saml2SPEnabled", true);
+        handler = BenchmarkSupport.activateHandler(directory, config);
+        template = handler.getRequestTemplate();
+        final HttpSession session = mock(HttpSession.class, withSettings().stubOnly());
+        request = mock(HttpServletRequest.class, withSettings().stubOnly());
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(anyBoolean())).thenReturn(session);
+        response = mock(HttpServletResponse.class, withSettings().stubOnly());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.deactivate();
+    }
+
+    @Benchmark
+    public AuthnRequest buildAuthnRequest() {
+        return handler.buildAuthnRequest();
+    }
+
+    @Benchmark
+    public AuthnRequest redirect() {
+        final AuthnRequest authnRequest = handler.buildAuthnRequest();
+        handler.redirectUserWithRequest(request, response, authnRequest);
+        return authnRequest;
+    }
+
+    @Benchmark
+    public HttpServletResponse templateRedirect() {
+        handler.redirectUserWithTemplate(request, response, template);
+        return response;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.sling.auth.saml2.Activator;
+import org.apache.sling.auth.saml2.AuthenticationHandlerSAML2Config;
+import org.apache.sling.auth.saml2.Saml2UserMgtServiceConfig;
+import org.opensaml.core.config.InitializationException;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Creates the handlers and fixtures of the benchmarks without an OSGi framework.
+ * All mocks are 'stub only' so that they do not record the invocations of millions
+ * of benchmark iterations.
+ */
+final class BenchmarkSupport {
+
+    private static boolean initialized;
+
+    private BenchmarkSupport() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static synchronized void initializeOpenSaml() throws InitializationException {
+        if (!initialized) {
+            Activator.initializeOpenSaml();
+            initialized = true;
+        }
+    }
+
+    /**
+     * @return a new directory for the key files of a benchmark
+     */
+    static File tempDirectory() throws IOException {
+        final File directory = Files.createTempDirectory("saml2-benchmark").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * @return the configuration of an enabled handler using the signing and encryption keys
+     * of a new keystore created by the {@link JKSHelper}
+     */
+    static Map<String, Object> jksConfig(final File directory) {
+        final String path = new File(directory, "benchmark.jks").getPath();
+        JKSHelper.addTestingCertsToKeystore(JKSHelper.createExampleJks(path));
+        final Map<String, Object> values = new HashMap<>();
+        values.put("saml2SPEnabled", true);
+        values.put("saml2SPEncryptAndSign", true);
+        values.put("jksFileLocation", path);
+        values.put("jksStorePassword", new String(JKSHelper.KEYSTORE_TEST_PASSWORD));
+        values.put("idpCertAlias", JKSHelper.IDP_ALIAS);
+        values.put("spKeysAlias", JKSHelper.SP_ALIAS);
+        values.put("spKeysPassword", new String(JKSHelper.SP_TEST_PASSWORD));
+        return values;
+    }
+
+    /**
+     * @param values the configuration values, the defaults of the configuration are used for all other values
+     * @return a handler activated with the given configuration, the token keys are stored in the given directory
+     */
+    static AuthenticationHandlerSAML2Impl activateHandler(final File directory, final Map<String, Object> values)
+            throws Exception {
+        final BundleContext bundleContext = mock(BundleContext.class, withSettings().stubOnly());
+        when(bundleContext.getDataFile(AuthenticationHandlerSAML2Impl.TOKEN_FILENAME))
+                .thenReturn(new File(directory, AuthenticationHandlerSAML2Impl.TOKEN_FILENAME));
+        final ComponentContext componentContext = mock(ComponentContext.class, withSettings().stubOnly());
+        when(componentContext.getBundleContext()).thenReturn(bundleContext);
+        final AuthenticationHandlerSAML2Impl handler = new AuthenticationHandlerSAML2Impl();
+        handler.activate(config(values), componentContext);
+        return handler;
+    }
+
+    /**
+     * @param values the configuration values, the defaults of the configuration are used for all other values
+     * @return a user management service activated with the given configuration
+     */
+    static Saml2UserMgtServiceImpl activateUserMgtService(final Map<String, Object> values) {
+        final Saml2UserMgtServiceImpl service = new Saml2UserMgtServiceImpl() {
+            @Override
+            protected void openGroupCache() {
+                // no repository to resolve the configured groups
+            }
+        };
+        service.activate(config(Saml2UserMgtServiceConfig.class, values),
+                mock(ComponentContext.class, withSettings().stubOnly()));
+        return service;
+    }
+
+    /**
+     * @return a configuration answering the given values and the defaults of all other attributes
+     */
+    static AuthenticationHandlerSAML2Config config(final Map<String, Object> values) {
+        return config(AuthenticationHandlerSAML2Config.class, values);
+    }
+
+    /**
+     * @return a configuration of the given type answering the given values and the defaults of all other attributes
+     */
+    static <T> T config(final Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> values.containsKey(method.getName())
+                        ? values.get(method.getName())
+                        : method.getDefaultValue()));
+    }
+}
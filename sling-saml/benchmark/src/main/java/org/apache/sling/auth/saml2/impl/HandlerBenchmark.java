@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the session cookie handling of the {@link AuthenticationHandlerSAML2Impl}
+ * done on each authenticated request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandlerBenchmark {
+
+    private AuthenticationHandlerSAML2Impl handler;
+    private String token;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final File directory = BenchmarkSupport.tempDirectory();
+        handler = new AuthenticationHandlerSAML2Impl();
+        handler.initializeTokenStore(new File(directory, AuthenticationHandlerSAML2Impl.TOKEN_FILENAME));
+        token = handler.getTokenStore().encode(System.currentTimeMillis() + 60L * 60L * 1000L,
+                "benchmark-user@example.org");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.deactivate();
+    }
+
+    @Benchmark
+    public boolean needsRefresh() {
+        return handler.needsRefresh(token);
+    }
+
+    @Benchmark
+    public String getUserId() {
+        return handler.getUserId(token);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the {@link AssertionIdCache}: recording new assertion IDs (run it with
+ * several threads, e.g. <code>-t 8</code>, for the concurrent inserts) and rejecting a
+ * replayed ID.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayCacheBenchmark {
+
+    private final AtomicLong sequence = new AtomicLong();
+    private AssertionIdCache cache;
+    private long expires;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        cache = new AssertionIdCache(Long.MAX_VALUE);
+        expires = System.currentTimeMillis() + 300_000L;
+        cache.checkAndRecord("_replayed", expires, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean record() {
+        return cache.checkAndRecord("_" + sequence.incrementAndGet(), expires, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean replay() {
+        return cache.checkAndRecord("_replayed", expires, System.currentTimeMillis());
+    }
+}
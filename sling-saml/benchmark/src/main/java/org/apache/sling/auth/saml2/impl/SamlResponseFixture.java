@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import org.apache.sling.auth.saml2.Helpers;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.schema.impl.XSStringBuilder;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml.saml2.encryption.Encrypter;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.CredentialSupport;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.Signer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Builds a SAML Response as posted by an IdP to the assertion consumer service: the
+ * assertion is signed with the IdP key and encrypted for the SP key of the keystore
+ * created by the {@link JKSHelper}.
+ */
+final class SamlResponseFixture {
+
+    private SamlResponseFixture() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param idpCredential the IdP key pair used to sign the assertion
+     * @param spCredential  the SP certificate used to encrypt the assertion
+     * @param recipient     the assertion consumer service URL
+     * @return the base64 encoded response as sent in the 'SAMLResponse' parameter
+     */
+    static String signedAndEncrypted(final Credential idpCredential, final X509Credential spCredential,
+                                     final String recipient) throws Exception {
+        final Assertion assertion = buildAssertion(recipient);
+        sign(assertion, idpCredential);
+        final Response response = Helpers.buildSAMLObject(Response.class);
+        response.setID("_" + Helpers.generateSecureRandomId());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(Instant.now());
+        response.setDestination(recipient);
+        response.setIssuer(buildIssuer());
+        final Status status = Helpers.buildSAMLObject(Status.class);
+        final StatusCode statusCode = Helpers.buildSAMLObject(StatusCode.class);
+        statusCode.setValue(StatusCode.SUCCESS);
+        status.setStatusCode(statusCode);
+        response.setStatus(status);
+        response.getEncryptedAssertions().add(encrypt(assertion, spCredential));
+        final String xml = SerializeSupport.nodeToString(XMLObjectProviderRegistrySupport.getMarshallerFactory()
+                .getMarshaller(response).marshall(response));
+        return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Assertion buildAssertion(final String recipient) {
+        final Instant now = Instant.now();
+        final Assertion assertion = Helpers.buildSAMLObject(Assertion.class);
+        assertion.setID("_" + Helpers.generateSecureRandomId());
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(now);
+        assertion.setIssuer(buildIssuer());
+
+        final NameID nameID = Helpers.buildSAMLObject(NameID.class);
+        nameID.setFormat(NameIDType.TRANSIENT);
+        nameID.setValue("benchmark-user");
+        final SubjectConfirmationData confirmationData = Helpers.buildSAMLObject(SubjectConfirmationData.class);
+        confirmationData.setNotOnOrAfter(now.plusSeconds(24L * 60L * 60L));
+        confirmationData.setRecipient(recipient);
+        final SubjectConfirmation confirmation = Helpers.buildSAMLObject(SubjectConfirmation.class);
+        confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        confirmation.setSubjectConfirmationData(confirmationData);
+        final Subject subject = Helpers.buildSAMLObject(Subject.class);
+        subject.setNameID(nameID);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        final AttributeStatement statement = Helpers.buildSAMLObject(AttributeStatement.class);
+        statement.getAttributes().add(buildAttribute("username", "benchmark-user"));
+        statement.getAttributes().add(buildAttribute("email", "benchmark-user@example.org"));
+        statement.getAttributes().add(buildAttribute("givenName", "Bench"));
+        statement.getAttributes().add(buildAttribute("familyName", "Mark"));
+        statement.getAttributes().add(buildAttribute("groups", "benchmark-group"));
+        assertion.getAttributeStatements().add(statement);
+        return assertion;
+    }
+
+    private static Issuer buildIssuer() {
+        final Issuer issuer = Helpers.buildSAMLObject(Issuer.class);
+        issuer.setValue("http://localhost:8080/idp");
+        return issuer;
+    }
+
+    private static Attribute buildAttribute(final String name, final String value) {
+        final Attribute attribute = Helpers.buildSAMLObject(Attribute.class);
+        attribute.setName(name);
+        final XSString attributeValue = new XSStringBuilder()
+                .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+        attributeValue.setValue(value);
+        attribute.getAttributeValues().add(attributeValue);
+        return attribute;
+    }
+
+    private static void sign(final Assertion assertion, final Credential idpCredential) throws Exception {
+        final Signature signature = Helpers.buildSAMLObject(Signature.class);
+        signature.setSigningCredential(idpCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        assertion.setSignature(signature);
+        XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(assertion).marshall(assertion);
+        Signer.signObject(signature);
+    }
+
+    private static EncryptedAssertion encrypt(final Assertion assertion, final X509Credential spCredential)
+            throws Exception {
+        final DataEncryptionParameters dataParameters = new DataEncryptionParameters();
+        dataParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256_GCM);
+        final KeyEncryptionParameters keyParameters = new KeyEncryptionParameters();
+        keyParameters.setEncryptionCredential(
+                CredentialSupport.getSimpleCredential(spCredential.getEntityCertificate(), null));
+        keyParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+        final Encrypter encrypter = new Encrypter(dataParameters, keyParameters);
+        encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
+        return encrypter.encrypt(assertion);
+    }
+}
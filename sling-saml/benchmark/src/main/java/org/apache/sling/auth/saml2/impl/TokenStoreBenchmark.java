@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the session token encoding and validation of the {@link TokenStore}.
+ * <p>
+ * The <code>legacy...</code> benchmark reproduces the validation as it was done before the
+ * per thread Mac pools (a <code>Mac.getInstance</code> and <code>init</code> per token) and
+ * is the baseline for the <code>isValid</code> numbers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenStoreBenchmark {
+
+    private static final long TTL = 240L * 60L * 1000L;
+
+    private File tokenFile;
+    private TokenStore tokenStore;
+    private String token;
+    private long expires;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        tokenFile = File.createTempFile(getClass().getSimpleName(), ".bin");
+        tokenFile.delete(); // start with a new key ring
+        tokenStore = new TokenStore(tokenFile, TTL, true);
+        expires = System.currentTimeMillis() + TTL;
+        token = tokenStore.encode(expires, "benchmark-user@example.org");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tokenStore.close();
+        tokenFile.delete();
+    }
+
+    @Benchmark
+    public String encode() throws Exception {
+        return tokenStore.encode(expires, "benchmark-user@example.org");
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return tokenStore.isValid(token);
+    }
+
+    @Benchmark
+    public boolean legacyIsValid() throws GeneralSecurityException {
+        final String[] parts = TokenStore.split(token);
+        final int tokenNumber = parts[1].charAt(0) - '0';
+        final long cookieTime = Long.parseLong(parts[1].substring(1));
+        final SecretKey key = tokenStore.getKeyRing().getKey(tokenNumber);
+        final String cookiePayload = "" + tokenNumber + cookieTime + "@" + parts[2];
+        final Mac m = Mac.getInstance(key.getAlgorithm());
+        m.init(key);
+        m.update(cookiePayload.getBytes(StandardCharsets.UTF_8));
+        return token.equals(byteToHex(m.doFinal()) + "@" + cookiePayload);
+    }
+
+    private static String byteToHex(final byte[] base) {
+        final char[] hex = "0123456789abcdef".toCharArray();
+        final char[] c = new char[base.length * 2];
+        int i = 0;
+        for (byte b : base) {
+            int j = b + 128;
+            c[i++] = hex[j / 0x10];
+            c[i++] = hex[j % 0x10];
+        }
+        return new String(c);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.auth.saml2.Helpers;
+import org.apache.sling.auth.saml2.Saml2User;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.XMLObjectBuilder;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the user management of a login with a large group membership attribute.
+ * <p>
+ * The <code>legacy...</code> benchmark reproduces the attribute mapping as it was done before
+ * the compiled {@link AttributeMappingPlan} (three name compares and a value cast per handler
+ * for each attribute of the first statement).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserMgtBenchmark {
+
+    private static final String USER_ID_ATTR = "uid";
+    private static final String GROUPS_ATTR = "groups";
+
+    @Param({"250"})
+    public int groups;
+
+    private Saml2UserMgtServiceImpl service;
+    private Assertion assertion;
+    private Map<String, String> syncGroupMap;
+    private Map<String, String> syncAttrMap;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.initializeOpenSaml();
+        final String[] syncGroups = new String[20];
+        for (int i = 0; i < syncGroups.length; i++) {
+            syncGroups[i] = "idp-group-" + (i * 10) + "=sling-group-" + i;
+        }
+        final String[] syncAttrs = {"mail=./profile/email", "givenName=./profile/givenName", "sn=./profile/familyName"};
+        final Map<String, Object> config = new HashMap<>();
+        config.put("saml2userIDAttr", USER_ID_ATTR);
+        config.put("saml2groupMembershipAttr", GROUPS_ATTR);
+        config.put("syncGroups", syncGroups);
+        config.put("syncAttrs", syncAttrs);
+        service = BenchmarkSupport.activateUserMgtService(config);
+        syncGroupMap = Saml2UserMgtServiceImpl.buildKeyMap(syncGroups);
+        syncAttrMap = Saml2UserMgtServiceImpl.buildKeyMap(syncAttrs);
+
+        final String[] groupValues = new String[groups];
+        for (int i = 0; i < groupValues.length; i++) {
+            groupValues[i] = "idp-group-" + i;
+        }
+        final AttributeStatement statement = Helpers.buildSAMLObject(AttributeStatement.class);
+        statement.getAttributes().add(attribute(USER_ID_ATTR, "benchmark-user@example.org"));
+        statement.getAttributes().add(attribute("mail", "benchmark-user@example.org"));
+        statement.getAttributes().add(attribute("givenName", "Bench"));
+        statement.getAttributes().add(attribute("sn", "Mark"));
+        statement.getAttributes().add(attribute(GROUPS_ATTR, groupValues));
+        assertion = Helpers.buildSAMLObject(Assertion.class);
+        assertion.getAttributeStatements().add(statement);
+    }
+
+    private static Attribute attribute(final String name, final String... values) {
+        final XMLObjectBuilder<XSString> valueBuilder =
+                XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilderOrThrow(XSString.TYPE_NAME);
+        final Attribute attribute = Helpers.buildSAMLObject(Attribute.class);
+        attribute.setName(name);
+        for (String value : values) {
+            final XSString attributeValue = valueBuilder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            attributeValue.setValue(value);
+            attribute.getAttributeValues().add(attributeValue);
+        }
+        return attribute;
+    }
+
+    @Benchmark
+    public Saml2User applySaml2Attributes() {
+        final Saml2User samlUser = new Saml2User();
+        service.applySaml2Attributes(assertion, samlUser);
+        return samlUser;
+    }
+
+    @Benchmark
+    public Saml2User legacyApplySaml2Attributes() {
+        final Saml2User samlUser = new Saml2User();
+        for (Attribute attribute : assertion.getAttributeStatements().get(0).getAttributes()) {
+            if (attribute.getName().equals(USER_ID_ATTR)) {
+                for (XMLObject attributeValue : attribute.getAttributeValues()) {
+                    final String value = ((XSString) attributeValue).getValue();
+                    if (StringUtils.isNotBlank(value)) {
+                        samlUser.setId(value);
+                    }
+                }
+            }
+            if (attribute.getName().equals(GROUPS_ATTR)) {
+                for (XMLObject attributeValue : attribute.getAttributeValues()) {
+                    final String groupKey = ((XSString) attributeValue).getValue();
+                    if (StringUtils.isNotBlank(groupKey)) {
+                        final String groupId = syncGroupMap.get(groupKey);
+                        if (StringUtils.isNotBlank(groupId)) {
+                            samlUser.addGroupMembership(groupId);
+                        }
+                    }
+                }
+            }
+            final String propertyName = syncAttrMap.get(attribute.getName());
+            if (StringUtils.isNotBlank(propertyName)) {
+                for (XMLObject attributeValue : attribute.getAttributeValues()) {
+                    if (((XSString) attributeValue).getValue() != null) {
+                        samlUser.addUserProperty(propertyName, attributeValue);
+                    }
+                }
+            }
+        }
+        return samlUser;
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.apache.sling.auth.saml2;
 
+import org.apache.sling.auth.saml2.sp.KeyStoreCache;
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.config.InitializationService;
 import org.opensaml.xmlsec.config.impl.JavaCryptoValidationInitializer;
@@ -26,7 +27,6 @@ import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.slf4j.Logger;
@@ -44,9 +44,8 @@ public class Activator implements BundleActivator {
 
     public void start(BundleContext context) throws IOException, InvalidSyntaxException {
         // Classloading
-        BundleWiring bundleWiring = context.getBundle().adapt(BundleWiring.class);
-        ClassLoader loader = bundleWiring.getClassLoader();
         Thread thread = Thread.currentThread();
+        ClassLoader loader = thread.getContextClassLoader();
         thread.setContextClassLoader(InitializationService.class.getClassLoader());
         try {
             initializeOpenSaml();
@@ -63,6 +62,7 @@ public class Activator implements BundleActivator {
     }
 
     public void stop(BundleContext context) throws IOException, InvalidSyntaxException {
+        KeyStoreCache.shutdown();
         if (configAdmin != null){
             removeSamlJaas();
         }
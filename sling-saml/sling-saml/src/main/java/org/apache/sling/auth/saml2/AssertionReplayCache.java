@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+
+/**
+ * A store of the consumed assertion IDs shared by the nodes of a cluster. If such a service
+ * is registered the SAML2 handler checks each assertion with it in addition to its local
+ * replay cache, so that an assertion consumed on one node is rejected on the others.
+ */
+public interface AssertionReplayCache {
+
+    /**
+     * Records the use of an assertion ID; the ID must be kept at least until the given instant.
+     *
+     * @param assertionId  the ID of the assertion
+     * @param notOnOrAfter the end of the validity of the assertion
+     * @return <code>true</code> if the ID was not used before, <code>false</code> for a replayed assertion
+     */
+    boolean checkAndRecord(@Nonnull String assertionId, @Nonnull Instant notOnOrAfter);
+}
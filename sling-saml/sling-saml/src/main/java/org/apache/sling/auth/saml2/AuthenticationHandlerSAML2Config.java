@@ -24,6 +24,7 @@ import org.apache.sling.auth.saml2.impl.AuthenticationHandlerSAML2Impl;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.AttributeType;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
 
 /**
@@ -99,4 +100,69 @@ public @interface AuthenticationHandlerSAML2Config {
         type = AttributeType.PASSWORD)
     String spKeysPassword() default "";
 
+    @AttributeDefinition(name = "Verified Token Cache Size",
+        description="Maximum number of verified session tokens kept in memory to skip their recomputation; 0 disables the cache",
+        type = AttributeType.INTEGER)
+    int tokenCacheSize() default 250000;
+
+    @AttributeDefinition(name = "Token Key Storage",
+        description="Where the keys of the session tokens are stored; share the keys (shared file system path or repository) "
+            + "to accept the tokens of all cluster nodes without sticky sessions",
+        options = {
+            @Option(label = "Bundle data directory (node local)", value = "bundle"),
+            @Option(label = "File system path", value = "path"),
+            @Option(label = "Repository", value = "repository")
+        })
+    String keyRingStorage() default "bundle";
+
+    @AttributeDefinition(name = "Token Key Path",
+        description="The file (storage 'path') or the repository path (storage 'repository', default '/var/saml2/keyring') of the token keys")
+    String keyRingPath() default "";
+
+    @AttributeDefinition(name = "Token Key Reload Interval",
+        description="Interval in seconds of the checks for token keys rotated by another node",
+        type = AttributeType.INTEGER)
+    int keyRingReloadInterval() default 10;
+
+    @AttributeDefinition(name = "Secure Random Strategy",
+        description="The generator of the token keys and relay states, created on activation; NativePRNGNonBlocking and "
+            + "SHA1PRNG never block on /dev/random, DRBG may block once on activation if securerandom.source is file:/dev/random",
+        options = {
+            @Option(label = "NativePRNGNonBlocking (/dev/urandom)", value = "NativePRNGNonBlocking"),
+            @Option(label = "DRBG", value = "DRBG"),
+            @Option(label = "SHA1PRNG with fast seed", value = "SHA1PRNG")
+        })
+    String secureRandomStrategy() default "NativePRNGNonBlocking";
+
+    @AttributeDefinition(name = "Parser Pool Size",
+        description="Maximum number of idle XML parsers kept for the SAML responses; the parsers are created with a fixed secure feature set",
+        type = AttributeType.INTEGER)
+    int parserPoolMaxSize() default 50;
+
+    @AttributeDefinition(name = "Reuse Parsers",
+        description="Return the XML parsers to the pool after use; if disabled a new parser is created for each SAML response",
+        type = AttributeType.BOOLEAN)
+    boolean parserPoolReuseBuilders() default true;
+
+    @AttributeDefinition(name = "SAML Response Size Limit",
+        description="Maximum size in bytes of the form posted to the assertion consumer service, larger responses are rejected (0: no limit)",
+        type = AttributeType.INTEGER)
+    int samlResponseMaxSize() default 1048576;
+
+    @AttributeDefinition(name = "Streaming SAML Response Decoding",
+        description="Decode the posted SAML response directly from the request body into the XML parser without buffering it",
+        type = AttributeType.BOOLEAN)
+    boolean samlResponseStreaming() default true;
+
+    @AttributeDefinition(name = "AuthnRequest Template",
+        description="Build the redirect to the IDP from an AuthnRequest marshalled once per configuration instead of encoding each request with OpenSAML",
+        type = AttributeType.BOOLEAN)
+    boolean authnRequestTemplate() default true;
+
+    @AttributeDefinition(name = "Assertion Replay Cache Size",
+        description="Maximum number of consumed assertion IDs kept until their expiry to reject replayed assertions; 0 disables the node local cache "
+            + "(a registered AssertionReplayCache service shared by the cluster is used in any case)",
+        type = AttributeType.INTEGER)
+    int replayCacheSize() default 1000000;
+
 }
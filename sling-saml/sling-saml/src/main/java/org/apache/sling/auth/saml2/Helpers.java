@@ -21,7 +21,7 @@
 package org.apache.sling.auth.saml2;
 
 import net.shibboleth.utilities.java.support.security.impl.RandomIdentifierGenerationStrategy;
-import org.opensaml.core.xml.XMLObjectBuilderFactory;
+import org.opensaml.core.xml.XMLObjectBuilder;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,20 +43,72 @@ public class Helpers {
         secureRandomIdGenerator = new RandomIdentifierGenerationStrategy();
     }
 
+    /**
+     * The element name and builder of each SAML object type, resolved once per type by reflection
+     * on its <code>DEFAULT_ELEMENT_NAME</code>; a failed lookup is not cached.
+     */
+    private static final ClassValue<BuilderEntry> BUILDERS = new ClassValue<BuilderEntry>() {
+        @Override
+        protected BuilderEntry computeValue(final Class<?> type) {
+            final QName defaultElementName;
+            try {
+                defaultElementName = (QName) type.getDeclaredField(DEFAULT_ELEMENT_NAME).get(null);
+            } catch (IllegalAccessException | NoSuchFieldException | ClassCastException e) {
+                throw new IllegalArgumentException("Could not create SAML object");
+            }
+            final XMLObjectBuilder<?> builder = XMLObjectProviderRegistrySupport.getBuilderFactory()
+                    .getBuilder(defaultElementName);
+            if (builder == null) {
+                throw new IllegalArgumentException("No builder registered for " + defaultElementName);
+            }
+            return new BuilderEntry(defaultElementName, builder);
+        }
+    };
+
+    private static final class BuilderEntry {
+
+        final QName elementName;
+        final XMLObjectBuilder<?> builder;
+
+        BuilderEntry(final QName elementName, final XMLObjectBuilder<?> builder) {
+            this.elementName = elementName;
+            this.builder = builder;
+        }
+    }
+
+    /**
+     * The builder of one SAML object type, e.g. kept in a static field of the class creating the
+     * objects. It is resolved on the first {@link #build()} (after the OpenSAML initialization).
+     */
+    public static final class TypedBuilder<T> {
+
+        private final Class<T> type;
+        private BuilderEntry entry;
+
+        private TypedBuilder(final Class<T> type) {
+            this.type = type;
+        }
+
+        public T build() {
+            BuilderEntry resolved = entry;
+            if (resolved == null) {
+                entry = resolved = BUILDERS.get(type);
+            }
+            return type.cast(resolved.builder.buildObject(resolved.elementName));
+        }
+    }
+
     private Helpers() {
         throw new IllegalStateException("Utility class");
     }
 
+    public static <T> TypedBuilder<T> typedBuilder(final Class<T> clazz) {
+        return new TypedBuilder<>(clazz);
+    }
+
     public static <T> T buildSAMLObject(final Class<T> clazz) {
-        T object = null;
-        try {
-            XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
-            QName defaultElementName = (QName) clazz.getDeclaredField(DEFAULT_ELEMENT_NAME).get(null);
-            object = (T)builderFactory.getBuilder(defaultElementName).buildObject(defaultElementName);
-        } catch (IllegalAccessException | NoSuchFieldException e) {
-            throw new IllegalArgumentException("Could not create SAML object");
-        }
-        return object;
+        final BuilderEntry entry = BUILDERS.get(clazz);
+        return clazz.cast(entry.builder.buildObject(entry.elementName));
     }
 
     public static String generateSecureRandomId() {
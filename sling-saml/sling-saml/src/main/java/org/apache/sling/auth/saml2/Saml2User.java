@@ -68,6 +68,10 @@ public class Saml2User {
         this.userProperties.put(key, ((XSString) attributeValue).getValue());
     }
 
+    public void addUserProperty(String key, String value) {
+        this.userProperties.put(key, value);
+    }
+
     public void addGroupMembership(String group) {
         this.groupMembership.add(group);
     }
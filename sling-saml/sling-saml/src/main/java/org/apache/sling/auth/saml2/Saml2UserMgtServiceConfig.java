@@ -52,4 +52,38 @@ public @interface Saml2UserMgtServiceConfig {
     @AttributeDefinition(name = "Synchronize User Attributes",
             description = "Map of attributes from SAML Response to Synchronize. For example, urn:oid:1.2.840.113549.1.9.1=./profile/email saves this attribute if it exists under the users profile node with the property name 'email' ")
     String[] syncAttrs() default {};
+
+    @AttributeDefinition(name = "Single Commit Synchronization",
+            description = "Stage all changes of a user synchronization (user, groups, properties, last login) and save them in one commit; "
+                    + "if disabled each step is saved separately")
+    boolean syncSingleCommit() default true;
+
+    @AttributeDefinition(name = "Commit Retries",
+            description = "Number of retries of a single commit synchronization failed because of a concurrent modification")
+    int syncCommitRetries() default 3;
+
+    @AttributeDefinition(name = "Commit Retry Backoff",
+            description = "Delay in milliseconds before the first retry, doubled for each further retry")
+    int syncRetryBackoff() default 50;
+
+    @AttributeDefinition(name = "Last Login Granularity",
+            description = "Minimum time in seconds between two updates of the last login time of a user, e.g. 3600 to "
+                    + "store it at most once per hour; 0 stores it on each login")
+    int lastLoginGranularity() default 0;
+
+    @AttributeDefinition(name = "Synchronization Fingerprint",
+            description = "Store a hash of the synchronized user data (ID, groups, properties) on the user and skip the "
+                    + "synchronization of groups and properties while a login brings the same data; manual changes of the "
+                    + "synchronized groups and properties are then no longer reverted on login")
+    boolean syncFingerprint() default false;
+
+    @AttributeDefinition(name = "Asynchronous Synchronization Workers",
+            description = "Number of threads synchronizing the groups and properties of known users after the login; "
+                    + "0 synchronizes them within the login request. New users are always synchronized before the login.")
+    int syncWorkers() default 0;
+
+    @AttributeDefinition(name = "Asynchronous Synchronization Queue",
+            description = "Maximum number of users waiting for the asynchronous synchronization; "
+                    + "if the queue is full the login request synchronizes the user itself")
+    int syncQueueCapacity() default 1000;
 }
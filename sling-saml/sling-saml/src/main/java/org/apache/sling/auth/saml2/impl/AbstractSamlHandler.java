@@ -40,6 +40,17 @@ abstract class AbstractSamlHandler extends DefaultAuthenticationFeedbackHandler
     private String acsPath;
     private String saml2LogoutURL;
     private String postLogoutRedirect;
+    private int tokenCacheSize = 250000;
+    private String keyRingStorage = "bundle";
+    private String keyRingPath = "";
+    private int keyRingReloadInterval = 10;
+    private String secureRandomStrategy = "NativePRNGNonBlocking";
+    private int parserPoolMaxSize = 50;
+    private boolean parserPoolReuseBuilders = true;
+    private int samlResponseMaxSize = 1048576;
+    private boolean samlResponseStreaming = true;
+    private boolean authnRequestTemplate = true;
+    private int replayCacheSize = 1000000;
 
     public static final String GOTO_URL_SESSION_ATTRIBUTE = "gotoURL";
     public static final String SAML2_REQUEST_ID = "saml2RequestID";
@@ -60,6 +71,17 @@ abstract class AbstractSamlHandler extends DefaultAuthenticationFeedbackHandler
         this.acsPath = config.acsPath();
         this.saml2LogoutURL = config.saml2LogoutURL();
         this.postLogoutRedirect = config.postLogoutRedirect();
+        this.tokenCacheSize = config.tokenCacheSize();
+        this.keyRingStorage = config.keyRingStorage();
+        this.keyRingPath = config.keyRingPath();
+        this.keyRingReloadInterval = config.keyRingReloadInterval();
+        this.secureRandomStrategy = config.secureRandomStrategy();
+        this.parserPoolMaxSize = config.parserPoolMaxSize();
+        this.parserPoolReuseBuilders = config.parserPoolReuseBuilders();
+        this.samlResponseMaxSize = config.samlResponseMaxSize();
+        this.samlResponseStreaming = config.samlResponseStreaming();
+        this.authnRequestTemplate = config.authnRequestTemplate();
+        this.replayCacheSize = config.replayCacheSize();
     }
 
 //    GETTERS
@@ -105,6 +127,39 @@ abstract class AbstractSamlHandler extends DefaultAuthenticationFeedbackHandler
     String getIdpCertAlias() {
         return this.idpCertAlias;
     }
+    int getTokenCacheSize() {
+        return this.tokenCacheSize;
+    }
+    String getKeyRingStorage() {
+        return this.keyRingStorage;
+    }
+    String getKeyRingPath() {
+        return this.keyRingPath;
+    }
+    int getKeyRingReloadInterval() {
+        return this.keyRingReloadInterval;
+    }
+    String getSecureRandomStrategy() {
+        return this.secureRandomStrategy;
+    }
+    int getParserPoolMaxSize() {
+        return this.parserPoolMaxSize;
+    }
+    boolean getParserPoolReuseBuilders() {
+        return this.parserPoolReuseBuilders;
+    }
+    int getSamlResponseMaxSize() {
+        return this.samlResponseMaxSize;
+    }
+    boolean getSamlResponseStreaming() {
+        return this.samlResponseStreaming;
+    }
+    boolean getAuthnRequestTemplate() {
+        return this.authnRequestTemplate;
+    }
+    int getReplayCacheSize() {
+        return this.replayCacheSize;
+    }
 
     String getACSURL() {
         final String domain = entityID.endsWith("/") ? entityID.substring(0, entityID.length()-1) : entityID;
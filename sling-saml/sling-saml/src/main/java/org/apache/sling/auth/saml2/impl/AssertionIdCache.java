@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.sling.auth.saml2.AssertionReplayCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The node local replay cache of the consumed assertion IDs.
+ * <p>
+ * An ID is stored as 64 bit fingerprint (SipHash with a random key per cache, so that the
+ * fingerprints can't be predicted) in open addressing tables of primitive longs, which the
+ * garbage collector doesn't have to trace. The tables are grouped by expiry window: an ID is
+ * kept in the table of the window containing its <code>NotOnOrAfter</code> and a window is
+ * dropped as a whole after its end, so there is no per entry eviction. Slots are only ever
+ * filled (compare and set), never cleared, which makes lookups and inserts lock-free. A full
+ * table is followed by a table of twice the size.
+ * <p>
+ * If the configured maximum of entries is reached new IDs are accepted without being
+ * recorded (like the non strict OpenSAML replay cache) and counted as overflow.
+ */
+class AssertionIdCache implements AssertionReplayCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssertionIdCache.class);
+
+    static final String ENTRIES = Saml2Metrics.name(AssertionIdCache.class, "entries");
+    static final String REPLAYS = Saml2Metrics.name(AssertionIdCache.class, "replays");
+    static final String OVERFLOWS = Saml2Metrics.name(AssertionIdCache.class, "overflows");
+
+    /**
+     * The width of an expiry window; the IDs are kept up to one window after their expiry.
+     */
+    static final long WINDOW = 60_000L;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int MAX_CAPACITY = 1 << 22;
+
+    /**
+     * A table counts as full for an ID if its probe finds no free slot within this distance;
+     * as slots are never cleared a full probe path stays full, so concurrent uses of one ID
+     * always end in the same table.
+     */
+    private static final int MAX_PROBES = 64;
+
+    private final Counter entries = Saml2Metrics.REGISTRY.counter(ENTRIES);
+    private final Meter replays = Saml2Metrics.REGISTRY.meter(REPLAYS);
+    private final Meter overflows = Saml2Metrics.REGISTRY.meter(OVERFLOWS);
+
+    private volatile long maxEntries;
+    private final HashFunction fingerprint;
+    private final Map<Long, Table> windows = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private volatile long nextEviction;
+
+    /**
+     * @param maxEntries the maximum number of recorded IDs
+     */
+    AssertionIdCache(final long maxEntries) {
+        this.maxEntries = maxEntries;
+        final SecureRandom random = new SecureRandom();
+        this.fingerprint = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    long getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Changes the maximum number of recorded IDs, the IDs already recorded are kept.
+     */
+    void setMaxEntries(final long maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the number of recorded IDs not yet evicted
+     */
+    long size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean checkAndRecord(@Nonnull final String assertionId, @Nonnull final Instant notOnOrAfter) {
+        return checkAndRecord(assertionId, notOnOrAfter.toEpochMilli(), System.currentTimeMillis());
+    }
+
+    /**
+     * @return <code>true</code> if the ID was not used before, <code>false</code> for a replayed
+     * or an already expired ID
+     */
+    boolean checkAndRecord(final String assertionId, final long expires, final long now) {
+        evict(now);
+        if (expires <= now) {
+            return false;
+        }
+        final long window = Math.floorDiv(expires, WINDOW) + 1;
+        long hash = fingerprint.hashString(assertionId, StandardCharsets.UTF_8).asLong();
+        if (hash == 0L) {
+            hash = 1L; // 0 marks a free slot
+        }
+        lookup:
+        while (true) {
+            Table table = windows.get(window);
+            if (table == null) {
+                table = windows.computeIfAbsent(window, w -> new Table(INITIAL_CAPACITY));
+            }
+            while (true) {
+                switch (table.add(hash)) {
+                    case ADDED:
+                        size.incrementAndGet();
+                        entries.inc();
+                        return true;
+                    case PRESENT:
+                        replays.mark();
+                        return false;
+                    case EVICTED:
+                        continue lookup; // the window was dropped concurrently, record the ID in its successor
+                    default:
+                        Table next = table.next.get();
+                        if (next == null) {
+                            if (size.get() >= maxEntries) {
+                                overflows.mark();
+                                logger.warn("assertion replay cache full ({} entries), '{}' not recorded", maxEntries, assertionId);
+                                return true;
+                            }
+                            table.next.compareAndSet(null, new Table(Math.min(table.capacity << 1, MAX_CAPACITY)));
+                            next = table.next.get();
+                        }
+                        if (table.isEvicted()) {
+                            continue lookup; // the eviction may have missed the appended table
+                        }
+                        table = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all recorded IDs, so that they are no longer counted in the shared entries metric.
+     *
+     * @return the number of IDs dropped
+     */
+    long close() {
+        return drop(Long.MAX_VALUE);
+    }
+
+    /**
+     * Drops the windows ended before <code>now</code>, checked at most once per window.
+     */
+    private void evict(final long now) {
+        if (now < nextEviction) {
+            return;
+        }
+        nextEviction = (Math.floorDiv(now, WINDOW) + 1) * WINDOW;
+        drop(now);
+    }
+
+    /**
+     * @return the number of IDs in the windows ended before <code>now</code>, which are dropped
+     */
+    private long drop(final long now) {
+        long dropped = 0;
+        final Iterator<Map.Entry<Long, Table>> iterator = windows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Long, Table> window = iterator.next();
+            if (window.getKey() * WINDOW <= now && windows.remove(window.getKey(), window.getValue())) {
+                for (Table table = window.getValue(); table != null; table = table.next.get()) {
+                    final int count = table.evict();
+                    size.addAndGet(-count);
+                    entries.dec(count);
+                    dropped += count;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    private enum Result {ADDED, PRESENT, FULL, EVICTED}
+
+    /**
+     * A linear probing table of fingerprints.
+     * <p>
+     * The eviction closes the count of a table, so an insert racing with it either is counted
+     * by the eviction or finds the table evicted and is repeated in the current table of the
+     * window; the recorded size doesn't drift either way.
+     */
+    private static final class Table {
+
+        /**
+         * The count of an evicted table, it stays negative whatever is added afterwards.
+         */
+        private static final int EVICTED = Integer.MIN_VALUE;
+
+        final int capacity;
+        final AtomicReference<Table> next = new AtomicReference<>();
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLongArray slots;
+
+        Table(final int capacity) {
+            this.capacity = capacity;
+            this.slots = new AtomicLongArray(capacity);
+        }
+
+        Result add(final long hash) {
+            final int mask = capacity - 1;
+            int index = (int) (hash ^ (hash >>> 32)) & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+                long current = slots.get(index);
+                if (current == 0L) {
+                    if (slots.compareAndSet(index, 0L, hash)) {
+                        return count.getAndIncrement() < 0 ? Result.EVICTED : Result.ADDED;
+                    }
+                    current = slots.get(index);
+                }
+                if (current == hash) {
+                    return Result.PRESENT;
+                }
+            }
+            return Result.FULL;
+        }
+
+        boolean isEvicted() {
+            return count.get() < 0;
+        }
+
+        /**
+         * Marks the table evicted.
+         *
+         * @return the number of fingerprints counted before
+         */
+        int evict() {
+            return count.getAndSet(EVICTED);
+        }
+    }
+}
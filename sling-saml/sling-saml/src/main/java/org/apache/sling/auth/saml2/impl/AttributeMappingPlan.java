@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.auth.saml2.Saml2User;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The attribute mapping of a {@link Saml2UserMgtServiceImpl} configuration, compiled once on
+ * activation: each configured attribute name is mapped to the handling of its values (user ID,
+ * group membership, user property or a combination of these), so that an attribute of an
+ * assertion costs a single map lookup and each value is read once.
+ */
+final class AttributeMappingPlan {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttributeMappingPlan.class);
+
+    /**
+     * The handling of one value of a mapped attribute.
+     */
+    @FunctionalInterface
+    interface ValueMapping {
+
+        void apply(@Nonnull Saml2User samlUser, @Nonnull String value);
+
+        default ValueMapping andThen(@Nonnull final ValueMapping next) {
+            return (samlUser, value) -> {
+                apply(samlUser, value);
+                next.apply(samlUser, value);
+            };
+        }
+    }
+
+    private final Map<String, ValueMapping> mappings = new HashMap<>();
+
+    /**
+     * @param userIdAttr          the attribute of the user ID
+     * @param groupMembershipAttr the attribute of the group memberships
+     * @param syncGroupMap        the IDP groups mapped to the repository groups
+     * @param syncAttrMap         the attributes mapped to the user properties
+     */
+    AttributeMappingPlan(@Nullable final String userIdAttr, @Nullable final String groupMembershipAttr,
+                         @Nonnull final Map<String, String> syncGroupMap, @Nonnull final Map<String, String> syncAttrMap) {
+        if (StringUtils.isNotBlank(userIdAttr)) {
+            add(userIdAttr, (samlUser, value) -> {
+                if (StringUtils.isNotBlank(value)) {
+                    samlUser.setId(value);
+                    LOG.debug("username value: {}", value);
+                }
+            });
+        }
+        if (StringUtils.isNotBlank(groupMembershipAttr)) {
+            final Map<String, String> groups = new HashMap<>();
+            for (Map.Entry<String, String> group : syncGroupMap.entrySet()) {
+                if (StringUtils.isNotBlank(group.getKey()) && StringUtils.isNotBlank(group.getValue())) {
+                    groups.put(group.getKey(), group.getValue());
+                }
+            }
+            add(groupMembershipAttr, (samlUser, groupKey) -> {
+                final String groupId = groups.get(groupKey);
+                if (groupId != null) {
+                    samlUser.addGroupMembership(groupId);
+                    LOG.debug("group '{}' added: '{}'", groupKey, groupId);
+                } else {
+                    LOG.debug("group '{}' ignored", groupKey);
+                }
+            });
+        }
+        for (Map.Entry<String, String> attr : syncAttrMap.entrySet()) {
+            final String propertyName = attr.getValue();
+            if (StringUtils.isNotBlank(propertyName)) {
+                add(attr.getKey(), (samlUser, value) -> {
+                    samlUser.addUserProperty(propertyName, value);
+                    LOG.debug("sync attr '{}' = '{}'", propertyName, value);
+                });
+            }
+        }
+    }
+
+    private void add(final String attributeName, final ValueMapping mapping) {
+        mappings.merge(attributeName, mapping, ValueMapping::andThen);
+    }
+
+    /**
+     * Applies the values of the mapped attributes of all attribute statements to the user.
+     */
+    void apply(@Nonnull final Assertion assertion, @Nonnull final Saml2User samlUser) {
+        for (AttributeStatement statement : assertion.getAttributeStatements()) {
+            for (Attribute attribute : statement.getAttributes()) {
+                final ValueMapping mapping = mappings.get(attribute.getName());
+                if (mapping != null) {
+                    for (XMLObject attributeValue : attribute.getAttributeValues()) {
+                        final String value = getValue(attributeValue);
+                        if (value != null) {
+                            mapping.apply(samlUser, value);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the string value of an attribute value or <code>null</code> if it has none
+     */
+    @Nullable
+    static String getValue(@Nullable final XMLObject attributeValue) {
+        if (attributeValue instanceof XSString) {
+            return ((XSString) attributeValue).getValue();
+        }
+        if (attributeValue instanceof XSAny) {
+            return ((XSAny) attributeValue).getTextContent();
+        }
+        return null;
+    }
+}
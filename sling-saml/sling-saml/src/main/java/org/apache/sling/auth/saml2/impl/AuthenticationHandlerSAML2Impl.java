@@ -21,12 +21,14 @@
 package org.apache.sling.auth.saml2.impl;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
-import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.net.HttpServletSupport;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.auth.core.AuthUtil;
 import org.apache.sling.auth.core.spi.AuthenticationHandler;
 import org.apache.sling.auth.core.spi.AuthenticationInfo;
+import org.apache.sling.auth.saml2.AssertionReplayCache;
 import org.apache.sling.auth.saml2.AuthenticationHandlerSAML2;
 import org.apache.sling.auth.saml2.AuthenticationHandlerSAML2Config;
 import org.apache.sling.auth.saml2.Helpers;
@@ -39,16 +41,15 @@ import org.apache.sling.auth.saml2.sp.SessionStorage;
 import org.apache.sling.auth.saml2.sp.VerifySignatureCredentials;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.messaging.context.MessageContext;
-import org.opensaml.messaging.decoder.MessageDecodingException;
 import org.opensaml.messaging.encoder.MessageEncodingException;
 import org.opensaml.saml.common.messaging.context.SAMLBindingContext;
 import org.opensaml.saml.common.messaging.context.SAMLEndpointContext;
 import org.opensaml.saml.common.messaging.context.SAMLPeerEntityContext;
 import org.opensaml.saml.common.xml.SAMLConstants;
-import org.opensaml.saml.saml2.binding.decoding.impl.HTTPPostDecoder;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Conditions;
 import org.opensaml.saml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml.saml2.core.Issuer;
 import org.opensaml.saml.saml2.core.LogoutRequest;
@@ -77,14 +78,16 @@ import org.opensaml.xmlsec.signature.support.SignatureConstants;
 import org.opensaml.xmlsec.signature.support.SignatureException;
 import org.opensaml.xmlsec.signature.support.SignatureValidator;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.FrameworkUtil;
-import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -130,15 +133,69 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
     public static final String AUTH_STORAGE_SESSION_TYPE = "session";
     public static final String AUTH_TYPE = "SAML2";
     static final String TOKEN_FILENAME = "saml2-cookie-tokens.bin";
+    static final String KEY_RING_STORAGE_PATH = "path";
+    static final String KEY_RING_STORAGE_REPOSITORY = "repository";
+    static final String DEFAULT_KEY_RING_RESOURCE = "/var/saml2/keyring";
 
     @Reference
     private Saml2UserMgtService saml2UserMgtService;
 
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    /**
+     * The replay cache shared by the cluster nodes, if such a service is registered
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY)
+    private volatile AssertionReplayCache sharedReplayCache;
+
     private SessionStorage storageAuthInfo;
     long sessionTimeout;
     private Credential spKeypair;
     private Credential idpVerificationCert;
 
+    /**
+     * The decrypter of the assertions built with the SP key pair of the current configuration,
+     * a configured Decrypter keeps no state of a decryption and is shared by all requests
+     */
+    private Decrypter decrypter;
+
+    /**
+     * The pool of the XML parsers of the posted SAML responses
+     */
+    private Saml2ParserPool parserPool;
+
+    /**
+     * The size limited decoder of the posted SAML responses using the {@link #parserPool}
+     */
+    private SamlResponseDecoder responseDecoder;
+
+    /**
+     * The AuthnRequest of the current configuration marshalled once, <code>null</code> if disabled
+     */
+    private AuthnRequestTemplate requestTemplate;
+
+    /**
+     * The node local cache of the consumed assertion IDs, <code>null</code> if disabled
+     */
+    private AssertionIdCache replayCache;
+
+    /**
+     * The signature profile validator, stateless and shared by all requests
+     */
+    private static final SAMLSignatureProfileValidator PROFILE_VALIDATOR = new SAMLSignatureProfileValidator();
+
+    /**
+     * The builders of the SAML objects created by the handler
+     */
+    private static final Helpers.TypedBuilder<AuthnRequest> AUTHN_REQUEST_BUILDER = Helpers.typedBuilder(AuthnRequest.class);
+    private static final Helpers.TypedBuilder<LogoutRequest> LOGOUT_REQUEST_BUILDER = Helpers.typedBuilder(LogoutRequest.class);
+    private static final Helpers.TypedBuilder<Issuer> ISSUER_BUILDER = Helpers.typedBuilder(Issuer.class);
+    private static final Helpers.TypedBuilder<NameIDPolicy> NAME_ID_POLICY_BUILDER = Helpers.typedBuilder(NameIDPolicy.class);
+    private static final Helpers.TypedBuilder<SingleSignOnService> SSO_SERVICE_BUILDER = Helpers.typedBuilder(SingleSignOnService.class);
+    private static final Helpers.TypedBuilder<SingleLogoutService> SLO_SERVICE_BUILDER = Helpers.typedBuilder(SingleLogoutService.class);
+
     /**
      * The request method required for SAML2 submission (value is "POST").
      * POST_BINDING
@@ -149,6 +206,7 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
      * The factor to convert minute numbers into milliseconds used internally
      */
     private static final long MINUTES = 60L * 1000L;
+    private static final long SECONDS = 1000L;
     private static final long TIMEOUT_MIN = 240; // 4 hr
 
     /**
@@ -156,13 +214,31 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
      */
     private TokenStore tokenStore;
 
+    /**
+     * The shared generator of the token keys and relay states, see {@link EntropyStrategy}
+     */
+    private SecureRandom secureRandom;
+
+    /**
+     * The cache of the tokens already verified by the {@link #tokenStore}
+     */
+    private VerifiedTokenCache tokenCache;
+
     @Activate
     @Modified
     protected void activate(final AuthenticationHandlerSAML2Config config, ComponentContext componentContext)
             throws InvalidKeyException, NoSuchAlgorithmException, IllegalStateException, IOException {
         this.setConfigs(config);
-        final File tokenFile = getTokenFile(componentContext.getBundleContext());
-        initializeTokenStore(tokenFile);
+        initializeTokenStore(getKeyRingProvider(componentContext.getBundleContext()));
+        initializeReplayCache();
+        try (ContextClassLoaderScope scope = ContextClassLoaderScope.enter()) {
+            initializeParserPool();
+            initializeCredentials();
+            initializeAuthnRequestTemplate();
+        }
+    }
+
+    private void initializeCredentials() {
         if (this.getSaml2SPEncryptAndSign()) {
             //      set encryption keys
             this.idpVerificationCert = VerifySignatureCredentials.getCredential(
@@ -175,19 +251,107 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
                     this.getSpKeysAlias(),
                     this.getSpKeysPassword().toCharArray());
             //      set credential for signing
+            this.decrypter = buildDecrypter(this.spKeypair);
+        } else {
+            this.decrypter = null;
+        }
+    }
+
+    void initializeReplayCache() {
+        if (this.getReplayCacheSize() <= 0) {
+            closeReplayCache();
+        } else if (this.replayCache == null) {
+            this.replayCache = new AssertionIdCache(this.getReplayCacheSize());
+        } else {
+            // resized in place, the consumed IDs stay protected
+            this.replayCache.setMaxEntries(this.getReplayCacheSize());
+        }
+    }
+
+    private void closeReplayCache() {
+        final AssertionIdCache cache = this.replayCache;
+        if (cache != null) {
+            this.replayCache = null;
+            final long dropped = cache.close();
+            if (dropped > 0) {
+                logger.info("assertion replay cache closed, {} consumed assertion IDs are no longer protected from replay",
+                        dropped);
+            }
+        }
+    }
+
+    void initializeAuthnRequestTemplate() {
+        this.requestTemplate = null;
+        if (this.getAuthnRequestTemplate()) {
+            try {
+                this.requestTemplate = new AuthnRequestTemplate(
+                        buildAuthnRequest(), this.getSaml2IDPDestination(), this.getSpKeypair());
+            } catch (SAML2RuntimeException e) {
+                logger.warn("AuthnRequest template not available, using the OpenSAML encoder: {}", e.toString());
+            }
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        closeReplayCache();
+        if (this.tokenStore != null) {
+            this.tokenStore.close();
+            this.tokenStore = null;
+            this.tokenCache = null;
+        }
+    }
+
+    void initializeParserPool() {
+        try {
+            this.parserPool = new Saml2ParserPool(getParserPoolMaxSize(), getParserPoolReuseBuilders());
+            this.responseDecoder = new SamlResponseDecoder(parserPool, getSamlResponseMaxSize(), getSamlResponseStreaming());
+        } catch (ComponentInitializationException e) {
+            throw new SAML2RuntimeException(e);
         }
     }
 
     void initializeTokenStore(File file) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
+        initializeTokenStore(new FileKeyRingProvider(file));
+    }
+
+    void initializeTokenStore(KeyRingProvider provider) throws NoSuchAlgorithmException, InvalidKeyException {
         this.storageAuthInfo = new SessionStorage(AUTHENTICATED_SESSION_ATTRIBUTE);
         this.sessionTimeout = MINUTES * TIMEOUT_MIN;
-        this.tokenStore = new TokenStore(file, sessionTimeout, false);
+        final TokenStore previous = this.tokenStore;
+        this.secureRandom = EntropyStrategy.fromConfig(getSecureRandomStrategy()).getSecureRandom();
+        this.tokenStore = new TokenStore(provider, sessionTimeout, secureRandom,
+                SECONDS * Math.max(1, getKeyRingReloadInterval()));
+        this.tokenCache = new VerifiedTokenCache(tokenStore, getTokenCacheSize(), sessionTimeout);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    Saml2ParserPool getParserPool() {
+        return this.parserPool;
+    }
+
+    AssertionIdCache getReplayCache() {
+        return this.replayCache;
+    }
+
+    AuthnRequestTemplate getRequestTemplate() {
+        return this.requestTemplate;
+    }
+
+    SamlResponseDecoder getResponseDecoder() {
+        return this.responseDecoder;
     }
 
     TokenStore getTokenStore() {
         return this.tokenStore;
     }
 
+    VerifiedTokenCache getTokenCache() {
+        return this.tokenCache;
+    }
+
     Credential getSpKeypair() {
         return this.spKeypair;
     }
@@ -234,7 +398,7 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         if (!this.getSaml2Path().isEmpty() && reqURI.startsWith(this.getSaml2Path())) {
             final String authData = getStorageAuthInfo().getString(httpServletRequest);
             if (authData != null) {
-                if (tokenStore.isValid(authData)) {
+                if (tokenCache.isValid(authData)) {
                     return buildAuthInfo(authData);
                 } else {
                     // clear the token from the session, its invalid and we should get rid of it
@@ -257,32 +421,40 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
     }
 
     private AuthenticationInfo processAssertionConsumerService(final HttpServletRequest httpServletRequest) {
-        doClassloading();
-        MessageContext messageContext = decodeHttpPostSamlResp(httpServletRequest);
-        Assertion assertion = null;
-        boolean relayStateIsOk = validateRelayState(httpServletRequest, messageContext);
-        // If relay state from request == relay state from session))
-        logger.debug("processAssertionConsumerService({})...", relayStateIsOk);
-        if (relayStateIsOk) {
-            Response response = (Response) messageContext.getMessage();
-            if (this.getSaml2SPEncryptAndSign()) {
-                EncryptedAssertion encryptedAssertion = response.getEncryptedAssertions().get(0);
-                assertion = decryptAssertion(encryptedAssertion);
-                verifyAssertionSignature(assertion);
-            } else {
-                // Not using encryption
-                assertion = response.getAssertions().get(0);
+        try (ContextClassLoaderScope scope = ContextClassLoaderScope.enter()) {
+            final MessageContext messageContext;
+            try {
+                messageContext = decodeHttpPostSamlResp(httpServletRequest);
+            } catch (SamlResponseDecoder.SizeLimitExceededException e) {
+                logger.warn("SAML response rejected: {}", e.getMessage());
+                httpServletRequest.setAttribute(FAILURE_REASON, SamlReason.RESPONSE_TOO_LARGE);
+                return AuthenticationInfo.FAIL_AUTH;
             }
-            if (validateSaml2Conditions(httpServletRequest, assertion)) {
-                logger.debug("Decrypted Assertion: ");
-                User extUser = doUserManagement(assertion);
-                if (extUser != null) {
-                    return this.buildAuthInfo(extUser);
+            Assertion assertion = null;
+            boolean relayStateIsOk = validateRelayState(httpServletRequest, messageContext);
+            // If relay state from request == relay state from session))
+            logger.debug("processAssertionConsumerService({})...", relayStateIsOk);
+            if (relayStateIsOk) {
+                Response response = (Response) messageContext.getMessage();
+                if (this.getSaml2SPEncryptAndSign()) {
+                    EncryptedAssertion encryptedAssertion = response.getEncryptedAssertions().get(0);
+                    assertion = decryptAssertion(encryptedAssertion);
+                    verifyAssertionSignature(assertion);
+                } else {
+                    // Not using encryption
+                    assertion = response.getAssertions().get(0);
+                }
+                if (validateSaml2Conditions(httpServletRequest, assertion)) {
+                    logger.debug("Decrypted Assertion: ");
+                    User extUser = doUserManagement(assertion);
+                    if (extUser != null) {
+                        return this.buildAuthInfo(extUser);
+                    }
                 }
+                logger.error("Validation of SubjectConfirmation failed");
             }
-            logger.error("Validation of SubjectConfirmation failed");
+            return null;
         }
-        return null;
     }
 
     /**
@@ -319,26 +491,19 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         }
 
         if (this.getSaml2SPEnabled()) {
-            doClassloading();
             HttpSession session = httpServletRequest.getSession(false);
             if (session != null) {
                 session.invalidate(); // initiate login with a fresh session
             }
             setGotoURLOnSession(httpServletRequest);
-            redirectUserForAuthentication(httpServletRequest, httpServletResponse);
+            try (ContextClassLoaderScope scope = ContextClassLoaderScope.enter()) {
+                redirectUserForAuthentication(httpServletRequest, httpServletResponse);
+            }
             return true;
         }
         return false;
     }
 
-    void doClassloading() {
-        // Classloading
-        BundleWiring bundleWiring = FrameworkUtil.getBundle(AuthenticationHandlerSAML2Impl.class).adapt(BundleWiring.class);
-        ClassLoader loader = bundleWiring.getClassLoader();
-        Thread thread = Thread.currentThread();
-        thread.setContextClassLoader(loader);
-    }
-
     private void setGotoURLOnSession(final HttpServletRequest request) {
         SessionStorage sessionStorage = new SessionStorage(GOTO_URL_SESSION_ATTRIBUTE);
         sessionStorage.setString(request, request.getRequestURL().toString());
@@ -346,16 +511,43 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
 
     private void redirectUserForAuthentication(final HttpServletRequest httpServletRequest,
                                                final HttpServletResponse httpServletResponse) {
-        AuthnRequest authnRequest = buildAuthnRequest();
-        redirectUserWithRequest(httpServletRequest, httpServletResponse, authnRequest);
+        final AuthnRequestTemplate template = this.requestTemplate;
+        if (template != null) {
+            redirectUserWithTemplate(httpServletRequest, httpServletResponse, template);
+        } else {
+            AuthnRequest authnRequest = buildAuthnRequest();
+            redirectUserWithRequest(httpServletRequest, httpServletResponse, authnRequest);
+        }
+    }
+
+    /**
+     * Redirects to the IDP like {@link #redirectUserWithRequest} with an AuthnRequest created
+     * from the {@link AuthnRequestTemplate}, no SAML objects are built per request.
+     */
+    void redirectUserWithTemplate(final HttpServletRequest httpServletRequest,
+                                  final HttpServletResponse httpServletResponse, final AuthnRequestTemplate template) {
+        final String requestID = Helpers.generateSecureRandomId();
+        final String relayState = setRelayStateOnSession(httpServletRequest);
+        setRequestIDOnSession(httpServletRequest, requestID);
+        final String redirectURL = template.buildRedirectUrl(requestID, Instant.now(), relayState);
+        HttpServletSupport.addNoCacheHeaders(httpServletResponse);
+        HttpServletSupport.setUTF8Encoding(httpServletResponse);
+        logger.debug("Redirecting to IDP: '{}'", requestID);
+        try {
+            httpServletResponse.sendRedirect(redirectURL);
+        } catch (IOException e) {
+            throw new SAML2RuntimeException(e);
+        }
     }
 
     private void redirectUserForSingleLogout(final HttpServletRequest httpServletRequest,
                                              final HttpServletResponse httpServletResponse) {
         Principal principal = httpServletRequest.getUserPrincipal();
         if (principal != null) {
-            LogoutRequest logoutRequest = buildLogoutRequest(principal.getName(), null);
-            redirectUserWithRequest(httpServletRequest, httpServletResponse, logoutRequest);
+            try (ContextClassLoaderScope scope = ContextClassLoaderScope.enter()) {
+                LogoutRequest logoutRequest = buildLogoutRequest(principal.getName(), null);
+                redirectUserWithRequest(httpServletRequest, httpServletResponse, logoutRequest);
+            }
         }
     }
 
@@ -371,7 +563,7 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         return requestLogin != null && !AUTH_TYPE.equals(requestLogin);
     }
 
-    private void redirectUserWithRequest(final HttpServletRequest httpServletRequest,
+    void redirectUserWithRequest(final HttpServletRequest httpServletRequest,
                                          final HttpServletResponse httpServletResponse, final RequestAbstractType requestForIDP) {
         MessageContext context = new MessageContext();
         context.setMessage(requestForIDP);
@@ -379,8 +571,8 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         SAMLPeerEntityContext peerEntityContext = Objects.requireNonNull(context.getSubcontext(SAMLPeerEntityContext.class, true));
         SAMLEndpointContext endpointContext = Objects.requireNonNull(peerEntityContext.getSubcontext(SAMLEndpointContext.class, true));
         if (requestForIDP instanceof AuthnRequest) {
-            setRelayStateOnSession(httpServletRequest, bindingContext);
-            setRequestIDOnSession(httpServletRequest, (AuthnRequest) requestForIDP);
+            bindingContext.setRelayState(setRelayStateOnSession(httpServletRequest));
+            setRequestIDOnSession(httpServletRequest, requestForIDP.getID());
             endpointContext.setEndpoint(getIPDEndpoint());
         } else if (requestForIDP instanceof LogoutRequest) {
             endpointContext.setEndpoint(getSLOEndpoint());
@@ -409,14 +601,14 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
     }
 
     Endpoint getIPDEndpoint() {
-        SingleSignOnService endpoint = Helpers.buildSAMLObject(SingleSignOnService.class);
+        SingleSignOnService endpoint = SSO_SERVICE_BUILDER.build();
         endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
         endpoint.setLocation(this.getSaml2IDPDestination());
         return endpoint;
     }
 
     Endpoint getSLOEndpoint() {
-        SingleLogoutService endpoint = Helpers.buildSAMLObject(SingleLogoutService.class);
+        SingleLogoutService endpoint = SLO_SERVICE_BUILDER.build();
         endpoint.setBinding(SAMLConstants.SAML2_PAOS_BINDING_URI);
         endpoint.setLocation(this.getSaml2LogoutURL());
         return endpoint;
@@ -432,7 +624,7 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
      * https://bitbucket.org/srasmusson/webprofile-ref-project-v3/src/master/src/main/java/no/steras/opensamlbook/sp/ConsumerServlet.java
      */
     AuthnRequest buildAuthnRequest() {
-        AuthnRequest authnRequest = Helpers.buildSAMLObject(AuthnRequest.class);
+        AuthnRequest authnRequest = AUTHN_REQUEST_BUILDER.build();
         authnRequest.setIssueInstant(Instant.now());
         authnRequest.setDestination(this.getSaml2IDPDestination());
         authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
@@ -445,7 +637,7 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
     }
 
     LogoutRequest buildLogoutRequest(@Nonnull final String userId, @Nullable final String sessionIdx) {
-        LogoutRequest logoutRequest = Helpers.buildSAMLObject(LogoutRequest.class);
+        LogoutRequest logoutRequest = LOGOUT_REQUEST_BUILDER.build();
         logoutRequest.setIssueInstant(Instant.now());
         logoutRequest.setDestination(this.getSaml2LogoutURL());
         // Entity ID
@@ -466,55 +658,50 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
     }
 
     Issuer buildIssuer() {
-        Issuer issuer = Helpers.buildSAMLObject(Issuer.class);
+        Issuer issuer = ISSUER_BUILDER.build();
         issuer.setValue(this.getEntityID());
         return issuer;
     }
 
     NameIDPolicy buildNameIdPolicy() {
-        NameIDPolicy nameIDPolicy = Helpers.buildSAMLObject(NameIDPolicy.class);
+        NameIDPolicy nameIDPolicy = NAME_ID_POLICY_BUILDER.build();
         nameIDPolicy.setAllowCreate(true);
         nameIDPolicy.setFormat(NameIDType.TRANSIENT);
         return nameIDPolicy;
     }
 
     MessageContext decodeHttpPostSamlResp(final HttpServletRequest request) {
-        HTTPPostDecoder httpPostDecoder = new HTTPPostDecoder();
-        ParserPool parserPool = XMLObjectProviderRegistrySupport.getParserPool();
-        httpPostDecoder.setParserPool(parserPool);
-        httpPostDecoder.setHttpServletRequest(request);
-        try {
-            httpPostDecoder.initialize();
-            httpPostDecoder.decode();
-            return httpPostDecoder.getMessageContext();
-        } catch (MessageDecodingException e) {
-            logger.error("MessageDecodingException");
-            throw new SAML2RuntimeException(e);
-        } catch (ComponentInitializationException e) {
-            throw new SAML2RuntimeException(e);
-        }
+        final SamlResponseDecoder decoder = this.responseDecoder != null ? this.responseDecoder
+                : new SamlResponseDecoder(XMLObjectProviderRegistrySupport.getParserPool(), getSamlResponseMaxSize(), false);
+        return decoder.decode(request);
     }
 
-    private Assertion decryptAssertion(final EncryptedAssertion encryptedAssertion) {
+    static Decrypter buildDecrypter(final Credential spKeypair) {
         // Use SP Private Key to decrypt
-        StaticKeyInfoCredentialResolver keyInfoCredentialResolver = new StaticKeyInfoCredentialResolver(getSpKeypair());
+        StaticKeyInfoCredentialResolver keyInfoCredentialResolver = new StaticKeyInfoCredentialResolver(spKeypair);
         Decrypter decrypter = new Decrypter(null, keyInfoCredentialResolver, new InlineEncryptedKeyResolver());
         decrypter.setRootInNewDocument(true);
+        return decrypter;
+    }
+
+    Assertion decryptAssertion(final EncryptedAssertion encryptedAssertion) {
+        if (this.decrypter == null) {
+            throw new SAML2RuntimeException("Assertion decryption is not configured");
+        }
         try {
-            return decrypter.decrypt(encryptedAssertion);
+            return this.decrypter.decrypt(encryptedAssertion);
         } catch (DecryptionException e) {
             throw new SAML2RuntimeException(e);
         }
     }
 
-    private void verifyAssertionSignature(final Assertion assertion) {
+    void verifyAssertionSignature(final Assertion assertion) {
         if (!assertion.isSigned()) {
             logger.error("Halting");
             throw new SAML2RuntimeException("The SAML Assertion was not signed!");
         }
         try {
-            SAMLSignatureProfileValidator profileValidator = new SAMLSignatureProfileValidator();
-            profileValidator.validate(assertion.getSignature());
+            PROFILE_VALIDATOR.validate(assertion.getSignature());
             // use IDP Cert to verify signature
             SignatureValidator.validate(assertion.getSignature(), this.getIdpVerificationCert());
             logger.info("SAML Assertion signature verified");
@@ -529,8 +716,7 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
 
     User doUserManagement(final Assertion assertion) {
         if (assertion == null ||
-                assertion.getAttributeStatements().isEmpty() ||
-                assertion.getAttributeStatements().get(0).getAttributes().isEmpty()) {
+                assertion.getAttributeStatements().stream().allMatch(statement -> statement.getAttributes().isEmpty())) {
             logger.warn("SAML Assertion Attribute Statement or Attributes was null.");
             return null;
         }
@@ -566,16 +752,16 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         return info;
     }
 
-    private void setRelayStateOnSession(HttpServletRequest req, SAMLBindingContext bindingContext) {
-        String state = new BigInteger(130, new SecureRandom()).toString(32);
-        bindingContext.setRelayState(state);
+    private String setRelayStateOnSession(HttpServletRequest req) {
+        String state = new BigInteger(130, secureRandom).toString(32);
         SessionStorage sessionStorage = new SessionStorage(this.getSaml2SessionAttr());
         sessionStorage.setString(req, state);
+        return state;
     }
 
-    private void setRequestIDOnSession(HttpServletRequest req, AuthnRequest authnRequest) {
+    private void setRequestIDOnSession(HttpServletRequest req, String requestID) {
         SessionStorage sessionStorage = new SessionStorage(SAML2_REQUEST_ID);
-        sessionStorage.setString(req, authnRequest.getID());
+        sessionStorage.setString(req, requestID);
     }
 
     private boolean validateRelayState(HttpServletRequest req, MessageContext messageContext) {
@@ -616,8 +802,37 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         final String savedInResponseTo = new SessionStorage(SAML2_REQUEST_ID).getString(req);
         boolean validID = savedInResponseTo.equals(inResponseTo);
 
-        // return true if subject confirmation is validated
-        return validTime && validRecipient && validID;
+        // return true if subject confirmation is validated and the assertion is used the first time
+        return validTime && validRecipient && validID && checkReplay(assertion, notOnOrAfter);
+    }
+
+    /**
+     * Records the assertion ID in the replay caches until the end of the assertion validity.
+     *
+     * @return <code>false</code> if the assertion has been consumed before
+     */
+    boolean checkReplay(final Assertion assertion, final Instant notOnOrAfter) {
+        final AssertionIdCache localCache = this.replayCache;
+        final AssertionReplayCache sharedCache = this.sharedReplayCache;
+        if (localCache == null && sharedCache == null) {
+            return true;
+        }
+        final String assertionId = assertion.getID();
+        if (StringUtils.isEmpty(assertionId)) {
+            logger.error("SAML2 Assertion failed validation: no ID.");
+            return false;
+        }
+        Instant expires = notOnOrAfter;
+        final Conditions conditions = assertion.getConditions();
+        if (conditions != null && conditions.getNotOnOrAfter() != null && conditions.getNotOnOrAfter().isAfter(expires)) {
+            expires = conditions.getNotOnOrAfter();
+        }
+        if ((localCache != null && !localCache.checkAndRecord(assertionId, expires))
+                || (sharedCache != null && !sharedCache.checkAndRecord(assertionId, expires))) {
+            logger.error("SAML2 Assertion failed validation: Replayed ID '{}'.", assertionId);
+            return false;
+        }
+        return true;
     }
 
 
@@ -759,9 +974,8 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         if (authData == null) {
             updateCookie = true;
         } else {
-            String[] parts = TokenStore.split(authData);
-            if (parts != null && parts.length == 3) {
-                long cookieTime = Long.parseLong(parts[1].substring(1));
+            long cookieTime = TokenStore.getExpires(authData);
+            if (cookieTime >= 0) {
                 long timeNow = System.currentTimeMillis();
                 if (timeNow > cookieTime) {
                     updateCookie = true;
@@ -793,6 +1007,24 @@ public class AuthenticationHandlerSAML2Impl extends AbstractSamlHandler implemen
         return null;
     }
 
+    /**
+     * @return the storage of the token keys as configured by the 'keyRingStorage'
+     */
+    KeyRingProvider getKeyRingProvider(final BundleContext bundleContext) {
+        final String path = StringUtils.trimToNull(getKeyRingPath());
+        switch (StringUtils.defaultString(getKeyRingStorage())) {
+            case KEY_RING_STORAGE_PATH:
+                if (path == null) {
+                    throw new IllegalStateException("keyRingPath required for the token key storage 'path'");
+                }
+                return new FileKeyRingProvider(new File(path).getAbsoluteFile());
+            case KEY_RING_STORAGE_REPOSITORY:
+                return new ResourceKeyRingProvider(resolverFactory, path != null ? path : DEFAULT_KEY_RING_RESOURCE);
+            default:
+                return new FileKeyRingProvider(getTokenFile(bundleContext));
+        }
+    }
+
     /**
      * Returns an absolute file indicating the file to use to persist the security
      * tokens.
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import net.shibboleth.utilities.java.support.xml.DOMTypeSupport;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import org.apache.sling.auth.saml2.SAML2RuntimeException;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+/**
+ * Creates the HTTP-Redirect binding URL of an AuthnRequest from a template marshalled once.
+ * <p>
+ * All values of the AuthnRequest except its ID and IssueInstant are the same for each login,
+ * so the request is marshalled and serialized once with placeholders and only the two values
+ * are inserted per request. The XML is deflated with a Deflater reused by the thread and, if
+ * a signing credential is configured, the query string is signed (RSA-SHA256, as by the
+ * OpenSAML encoder) with a Signature initialized once per thread.
+ */
+final class AuthnRequestTemplate {
+
+    static final String SIGNATURE_ALGORITHM = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256;
+
+    private static final String JCA_SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String ID_PLACEHOLDER = "_authnRequestTemplateId";
+    private static final Instant INSTANT_PLACEHOLDER = Instant.EPOCH;
+
+    /**
+     * The deflater of the current thread, configured as by the OpenSAML encoder (raw deflate).
+     */
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFLATED, true));
+    private static final ThreadLocal<byte[]> DEFLATE_BUFFER = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private final String destination;
+    private final String prefix;
+    private final String middle;
+    private final String suffix;
+    private final boolean idFirst;
+    private final String encodedSigAlg;
+    private final ThreadLocal<Signature> signatures;
+
+    /**
+     * @param prototype         the request to use as template, its ID and IssueInstant are replaced
+     * @param destination       the SSO endpoint of the IdP
+     * @param signingCredential the SP key pair to sign the requests or <code>null</code>
+     * @throws SAML2RuntimeException if the request can't be marshalled
+     */
+    AuthnRequestTemplate(final AuthnRequest prototype, final String destination, final Credential signingCredential) {
+        this.destination = destination;
+        prototype.setID(ID_PLACEHOLDER);
+        prototype.setIssueInstant(INSTANT_PLACEHOLDER);
+        final String xml;
+        try {
+            xml = SerializeSupport.nodeToString(XMLObjectProviderRegistrySupport.getMarshallerFactory()
+                    .getMarshaller(prototype).marshall(prototype));
+        } catch (MarshallingException e) {
+            throw new SAML2RuntimeException(e);
+        }
+        final String instant = DOMTypeSupport.instantToString(INSTANT_PLACEHOLDER);
+        final int id = xml.indexOf(ID_PLACEHOLDER);
+        final int issueInstant = xml.indexOf(instant);
+        if (id < 0 || issueInstant < 0) {
+            throw new SAML2RuntimeException("AuthnRequest template placeholders not found");
+        }
+        idFirst = id < issueInstant;
+        final int first = Math.min(id, issueInstant);
+        final int second = Math.max(id, issueInstant);
+        prefix = xml.substring(0, first);
+        middle = xml.substring(first + (idFirst ? ID_PLACEHOLDER : instant).length(), second);
+        suffix = xml.substring(second + (idFirst ? instant : ID_PLACEHOLDER).length());
+
+        final PrivateKey privateKey = signingCredential != null ? signingCredential.getPrivateKey() : null;
+        if (privateKey != null) {
+            encodedSigAlg = urlEncode(SIGNATURE_ALGORITHM);
+            signatures = ThreadLocal.withInitial(() -> {
+                try {
+                    final Signature signature = Signature.getInstance(JCA_SIGNATURE_ALGORITHM);
+                    signature.initSign(privateKey);
+                    return signature;
+                } catch (GeneralSecurityException e) {
+                    throw new SAML2RuntimeException(e);
+                }
+            });
+            // fail on activation if the key doesn't fit
+            signatures.get();
+        } else {
+            encodedSigAlg = null;
+            signatures = null;
+        }
+    }
+
+    boolean isSigned() {
+        return signatures != null;
+    }
+
+    /**
+     * @return the XML of the request with the given values
+     */
+    String toXml(final String id, final Instant issueInstant) {
+        final String instant = DOMTypeSupport.instantToString(issueInstant);
+        return new StringBuilder(prefix.length() + middle.length() + suffix.length() + 64)
+                .append(prefix).append(idFirst ? id : instant)
+                .append(middle).append(idFirst ? instant : id)
+                .append(suffix).toString();
+    }
+
+    /**
+     * @param id           the ID of the request, it must not need XML escaping
+     * @param issueInstant the IssueInstant of the request
+     * @param relayState   the relay state or <code>null</code>
+     * @return the redirect URL with the deflated (and signed) request
+     */
+    String buildRedirectUrl(final String id, final Instant issueInstant, final String relayState) {
+        final StringBuilder query = new StringBuilder(1024)
+                .append("SAMLRequest=").append(urlEncode(deflateAndEncode(toXml(id, issueInstant))));
+        if (relayState != null && !relayState.isEmpty()) {
+            query.append("&RelayState=").append(urlEncode(relayState));
+        }
+        if (signatures != null) {
+            query.append("&SigAlg=").append(encodedSigAlg);
+            final Signature signature = signatures.get();
+            try {
+                signature.update(query.toString().getBytes(StandardCharsets.UTF_8));
+                query.append("&Signature=").append(urlEncode(Base64.getEncoder().encodeToString(signature.sign())));
+            } catch (GeneralSecurityException e) {
+                throw new SAML2RuntimeException(e);
+            }
+        }
+        return destination + (destination.indexOf('?') < 0 ? '?' : '&') + query;
+    }
+
+    private static String deflateAndEncode(final String xml) {
+        final Deflater deflater = DEFLATER.get();
+        final byte[] buffer = DEFLATE_BUFFER.get();
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream(xml.length() / 2);
+        try {
+            deflater.setInput(xml.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.reset();
+        }
+        return Base64.getEncoder().encodeToString(deflated.toByteArray());
+    }
+
+    private static String urlEncode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new SAML2RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+/**
+ * Sets the context class loader of the current thread for the calls into OpenSAML (which
+ * loads its providers through the context class loader) and restores the previous one on
+ * {@link #close()}, so that the pooled request threads are left unchanged:
+ * <pre>
+ * try (ContextClassLoaderScope scope = ContextClassLoaderScope.enter()) {
+ *     ...
+ * }
+ * </pre>
+ * The bundle class loader is the loader of this class and is resolved once; if the thread
+ * already uses it nothing is changed and no scope object is created.
+ */
+final class ContextClassLoaderScope implements AutoCloseable {
+
+    /**
+     * The class loader of the bundle, it sees the embedded OpenSAML libraries.
+     */
+    static final ClassLoader BUNDLE_CLASS_LOADER = ContextClassLoaderScope.class.getClassLoader();
+
+    private static final ContextClassLoaderScope UNCHANGED = new ContextClassLoaderScope(null, null);
+
+    private final Thread thread;
+    private final ClassLoader previous;
+
+    private ContextClassLoaderScope(final Thread thread, final ClassLoader previous) {
+        this.thread = thread;
+        this.previous = previous;
+    }
+
+    /**
+     * @return the scope of the bundle class loader as context class loader of the current thread
+     */
+    static ContextClassLoaderScope enter() {
+        return enter(BUNDLE_CLASS_LOADER);
+    }
+
+    /**
+     * @return the scope of the given class loader as context class loader of the current thread
+     */
+    static ContextClassLoaderScope enter(final ClassLoader loader) {
+        final Thread current = Thread.currentThread();
+        final ClassLoader previous = current.getContextClassLoader();
+        if (previous == loader) {
+            return UNCHANGED;
+        }
+        current.setContextClassLoader(loader);
+        return new ContextClassLoaderScope(current, previous);
+    }
+
+    /**
+     * Restores the context class loader active before {@link #enter()}.
+     */
+    @Override
+    public void close() {
+        if (thread != null) {
+            thread.setContextClassLoader(previous);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The strategies to create the {@link SecureRandom} used for the token keys and the
+ * relay states. Each strategy has a single generator shared by all handler instances;
+ * the generator is created and warmed up on first use, i.e. on activation, so that a
+ * possibly blocking seeding happens there and not on a request. {@link #NATIVE_NON_BLOCKING}
+ * and {@link #FAST_SEED} never block on <code>/dev/random</code>.
+ */
+enum EntropyStrategy {
+
+    /**
+     * The native generator of the platform reading <code>/dev/urandom</code>.
+     */
+    NATIVE_NON_BLOCKING("NativePRNGNonBlocking"),
+
+    /**
+     * The NIST SP 800-90Ar1 generator of the JRE; it is seeded from the seed source of the
+     * JRE (<code>securerandom.source</code>), so its first use may block if that is
+     * <code>file:/dev/random</code>.
+     */
+    DRBG("DRBG"),
+
+    /**
+     * A SHA1PRNG seeded with entropy collected fast from the current state of the system;
+     * available on all platforms but not necessarily secure enough.
+     */
+    FAST_SEED("SHA1PRNG");
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntropyStrategy.class);
+
+    private final String algorithm;
+
+    EntropyStrategy(final String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @param value the name of a strategy or the name of its algorithm, case insensitive
+     * @return the strategy, {@link #NATIVE_NON_BLOCKING} if the value is unknown
+     */
+    static EntropyStrategy fromConfig(final String value) {
+        for (EntropyStrategy strategy : values()) {
+            if (strategy.name().equalsIgnoreCase(value) || strategy.algorithm.equalsIgnoreCase(value)) {
+                return strategy;
+            }
+        }
+        return NATIVE_NON_BLOCKING;
+    }
+
+    /**
+     * @return the shared generator of this strategy or the generator of the fast seed
+     * strategy if the algorithm of this strategy is not available on the platform
+     */
+    SecureRandom getSecureRandom() {
+        synchronized (Generators.SHARED) {
+            SecureRandom secureRandom = Generators.SHARED.get(this);
+            if (secureRandom == null) {
+                secureRandom = createSecureRandom();
+                Generators.SHARED.put(this, secureRandom);
+            }
+            return secureRandom;
+        }
+    }
+
+    private SecureRandom createSecureRandom() {
+        try {
+            final SecureRandom random = SecureRandom.getInstance(algorithm);
+            if (this == FAST_SEED) {
+                random.setSeed(getFastEntropy());
+            }
+            // warm up: the first call seeds the generator
+            random.nextBytes(new byte[20]);
+            LOG.info("secure random generator {} initialized", algorithm);
+            return random;
+        } catch (NoSuchAlgorithmException e) {
+            if (this == FAST_SEED) {
+                throw new IllegalStateException(e);
+            }
+            LOG.warn("secure random generator {} not available, using {}", algorithm, FAST_SEED.algorithm);
+            return FAST_SEED.getSecureRandom();
+        }
+    }
+
+    /**
+     * The generators created by the strategies, shared by all handler instances.
+     */
+    private static final class Generators {
+
+        static final Map<EntropyStrategy, SecureRandom> SHARED = new EnumMap<>(EntropyStrategy.class);
+    }
+
+    /**
+     * Creates a byte array of entry from the current state of the system:
+     * <ul>
+     * <li>The current system time in milliseconds since the epoch</li>
+     * <li>The number of nanoseconds since system startup</li>
+     * <li>The name, size and last modification time of the files in the
+     * <code>java.io.tmpdir</code> folder.</li>
+     * </ul>
+     * <p>
+     * <b>NOTE</b> This method generates entropy fast but not necessarily
+     * secure enough for seeding the random number generator.
+     *
+     * @return bytes of entropy
+     */
+    private static byte[] getFastEntropy() {
+        final MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new InternalError("internal error: SHA-1 not available.");
+        }
+
+        // update with XorShifted time values
+        update(md, System.currentTimeMillis());
+        update(md, System.nanoTime());
+
+        // scan the temp file system
+        File file = new File(System.getProperty("java.io.tmpdir"));
+        File[] entries = file.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                md.update(entry.getName().getBytes());
+                update(md, entry.lastModified());
+                update(md, entry.length());
+            }
+        }
+
+        return md.digest();
+    }
+
+    /**
+     * Updates the message digest with an XOR-Shifted value.
+     *
+     * @param md The MessageDigest to update
+     * @param value The original value to be XOR-Shifted first before taking the
+     *            bytes ot update the message digest
+     */
+    private static void update(final MessageDigest md, long value) {
+        value ^= (value << 21);
+        value ^= (value >>> 35);
+        value ^= (value << 4);
+
+        for (int i = 0; i < 8; i++) {
+            md.update((byte) value);
+            value >>= 8;
+        }
+    }
+}
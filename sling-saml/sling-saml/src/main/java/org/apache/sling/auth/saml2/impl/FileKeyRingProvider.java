@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores the key ring in a file, either in the data directory of the bundle or in a
+ * path shared by several instances (a directory on the same host or a shared file system).
+ * <p>
+ * The file is read with positional channel reads into heap buffers, so no mapping keeps
+ * the file open (which would block its replacement on Windows). It is written to a
+ * temporary file which is forced to the disk and then replaces the file atomically, so a
+ * crash never leaves a partially written file and a reader sees either the old or the
+ * new file. The check of the stored generation and the write are done while holding a
+ * lock on a lock file next to the key file.
+ */
+class FileKeyRingProvider implements KeyRingProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileKeyRingProvider.class);
+
+    /**
+     * Serializes the file locks of the providers in this JVM; the lock of a file is
+     * held by the JVM and can not be acquired twice within the same JVM.
+     */
+    private static final Object FILE_LOCK = new Object();
+
+    /** The token file to persist the secure tokens */
+    private final File tokenFile;
+
+    /** A temporary file used to update the secure token file */
+    private final File tmpTokenFile;
+
+    /** The file locked while the token file is updated */
+    private final File lockFile;
+
+    /**
+     * @throws NullPointerException if <code>tokenFile</code> is <code>null</code>.
+     */
+    FileKeyRingProvider(final File tokenFile) {
+        if (tokenFile == null) {
+            throw new NullPointerException("tokenfile");
+        }
+        this.tokenFile = tokenFile;
+        this.tmpTokenFile = new File(tokenFile + ".tmp");
+        this.lockFile = new File(tokenFile + ".lock");
+    }
+
+    @Override
+    public long getGeneration() {
+        try (FileChannel channel = FileChannel.open(tokenFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < KeyRingFormat.HEADER_SIZE) {
+                return -1L;
+            }
+            return KeyRingFormat.getGeneration(read(channel, KeyRingFormat.HEADER_SIZE));
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    @Override
+    public KeyRing load(final String algorithm, final int size) {
+        if (!tokenFile.isFile() || !tokenFile.canRead()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(tokenFile.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            if (length == 0) {
+                return null;
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("key file too large: " + length);
+            }
+            return KeyRingFormat.decode(read(channel, (int) length), algorithm, size);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to load cookie keys {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the first <code>length</code> bytes of the channel, ready to be read
+     */
+    private static ByteBuffer read(final FileChannel channel, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException("unexpected end of the key file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public boolean store(final KeyRing ring) throws IOException {
+        final File parent = tokenFile.getAbsoluteFile().getParentFile();
+        LOG.debug("Token File {} parent {} ", tokenFile, parent);
+        Files.createDirectories(parent.toPath());
+        synchronized (FILE_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                 FileLock ignored = lockChannel.lock()) {
+                if (getGeneration() >= ring.getGeneration()) {
+                    return false;
+                }
+                write(KeyRingFormat.encode(ring));
+                return true;
+            }
+        }
+    }
+
+    private void write(final ByteBuffer data) throws IOException {
+        try (FileChannel channel = FileChannel.open(tmpTokenFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tmpTokenFile.toPath(), tokenFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpTokenFile.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return tokenFile.getPath();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The repository paths of the groups configured for the user synchronization, resolved on
+ * activation so that a login only has to bind the path to the group of its session.
+ * <p>
+ * The cache keeps a service session open and listens to the groups folder configured in the
+ * repository (and to the folders of the resolved groups if they are not within it): it is
+ * reloaded if a resolved group (or one of its folders) is removed or moved, or a node is added
+ * while some groups are missing. The missing groups are logged when they are found missing, not
+ * on each login.
+ */
+final class GroupCache implements EventListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCache.class);
+
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED;
+
+    private final ResourceResolver resolver;
+    private final JackrabbitSession session;
+    private final Set<String> groupIds;
+    private final String root;
+
+    private volatile Map<String, String> paths = Collections.emptyMap();
+    private volatile Set<String> missing = Collections.emptySet();
+
+    /**
+     * Resolves the groups and starts listening to changes of the groups folder.
+     *
+     * @param resolver   the service resolver of the session to use, closed on {@link #close()}
+     * @param groupIds   the IDs of the groups to resolve
+     * @param groupsPath the folder of the groups configured in the repository, <code>null</code>
+     *                   if unknown (the whole repository is observed then)
+     */
+    GroupCache(@Nonnull final ResourceResolver resolver, @Nonnull final JackrabbitSession session,
+               @Nonnull final Set<String> groupIds, @Nullable final String groupsPath) throws RepositoryException {
+        this.resolver = resolver;
+        this.session = session;
+        this.groupIds = groupIds;
+        load();
+        this.root = commonRoot(groupsPath != null ? groupsPath : "/", paths.values());
+        session.getWorkspace().getObservationManager().addEventListener(this, EVENT_TYPES,
+                root, true, null, null, false);
+        logger.debug("listening to the groups in '{}'", root);
+    }
+
+    /**
+     * @return the path observed for changes of the groups
+     */
+    @Nonnull
+    String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the path of the group or <code>null</code> if it is missing or not configured
+     */
+    @Nullable
+    String getPath(@Nonnull final String groupId) {
+        return paths.get(groupId);
+    }
+
+    /**
+     * @return <code>true</code> if the configured group doesn't exist
+     */
+    boolean isMissing(@Nonnull final String groupId) {
+        return missing.contains(groupId);
+    }
+
+    /**
+     * Resolves all groups with the current state of the repository.
+     */
+    void load() throws RepositoryException {
+        session.refresh(false);
+        final UserManager userManager = session.getUserManager();
+        final Map<String, String> resolved = new HashMap<>();
+        final Set<String> notFound = new LinkedHashSet<>();
+        for (String groupId : groupIds) {
+            final Authorizable authorizable = userManager.getAuthorizable(groupId);
+            if (authorizable != null && authorizable.isGroup()) {
+                resolved.put(groupId, authorizable.getPath());
+            } else {
+                notFound.add(groupId);
+                if (!missing.contains(groupId)) {
+                    logger.warn("Group '{}' not found or not a group.", groupId);
+                }
+            }
+        }
+        paths = resolved;
+        missing = notFound;
+        logger.debug("groups resolved: {}, missing: {}", resolved, notFound);
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        try {
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                if (isRelevant(event.getType(), event.getPath())) {
+                    load();
+                    return;
+                }
+            }
+        } catch (RepositoryException ex) {
+            logger.error("reload of the groups failed", ex);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the event can change the resolution of a group
+     */
+    boolean isRelevant(final int type, @Nonnull final String path) {
+        for (String groupPath : paths.values()) {
+            if (groupPath.equals(path) || groupPath.startsWith(path + "/")) {
+                return true;
+            }
+            if (path.startsWith(groupPath + "/")) {
+                return false; // a change within a group (e.g. its member list)
+            }
+        }
+        return type == Event.NODE_ADDED && !missing.isEmpty();
+    }
+
+    /**
+     * @return the deepest folder containing the root and all paths
+     */
+    @Nonnull
+    static String commonRoot(@Nonnull final String root, @Nonnull final Iterable<String> paths) {
+        String common = root;
+        for (String path : paths) {
+            while (!common.equals("/") && !path.equals(common) && !path.startsWith(common + "/")) {
+                final int slash = common.lastIndexOf('/');
+                common = slash > 0 ? common.substring(0, slash) : "/";
+            }
+        }
+        return common;
+    }
+
+    /**
+     * Stops listening and closes the session.
+     */
+    void close() {
+        try {
+            final ObservationManager observationManager = session.getWorkspace().getObservationManager();
+            observationManager.removeEventListener(this);
+        } catch (RepositoryException ex) {
+            logger.warn("removing the group listener failed", ex);
+        } finally {
+            resolver.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+
+/**
+ * An immutable snapshot of the secret keys used by the {@link TokenStore}.
+ * A rotation never modifies a ring, it creates a new one which replaces the
+ * previous snapshot atomically, so readers never need a lock.
+ * <p>
+ * Each key has its own pool of initialized {@link Mac} instances, one per thread.
+ * A key keeps its pool as long as it is part of the ring; the pool of a key
+ * dropped by a rotation is released together with the key.
+ */
+final class KeyRing {
+
+    /**
+     * The ring of secret keys, a slot is <code>null</code> until it has been used once.
+     */
+    private final SecretKey[] keys;
+
+    /**
+     * The per thread {@link Mac} instances initialized with the key of the same slot.
+     */
+    private final ThreadLocal<Mac>[] macs;
+
+    /**
+     * The index of the key used to encode new tokens.
+     */
+    private final int current;
+
+    /**
+     * The time when a new key should be created.
+     */
+    private final long nextUpdate;
+
+    /**
+     * The number of rotations which led to this ring, used to detect newer rings
+     * persisted by other instances sharing the same key file.
+     */
+    private final long generation;
+
+    KeyRing(final SecretKey[] keys, final int current, final long nextUpdate, final long generation) {
+        this(keys.clone(), newMacPools(keys), current, nextUpdate, generation);
+    }
+
+    private KeyRing(final SecretKey[] keys, final ThreadLocal<Mac>[] macs, final int current,
+                    final long nextUpdate, final long generation) {
+        this.keys = keys;
+        this.macs = macs;
+        this.current = current;
+        this.nextUpdate = nextUpdate;
+        this.generation = generation;
+    }
+
+    /**
+     * @param size the number of key slots
+     * @return a ring without any key which is due for a rotation immediately
+     */
+    static KeyRing empty(final int size) {
+        return new KeyRing(new SecretKey[size], 0, System.currentTimeMillis(), 0L);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    int getCurrent() {
+        return current;
+    }
+
+    long getNextUpdate() {
+        return nextUpdate;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the key of the given slot or <code>null</code> if the slot is empty or out of range
+     */
+    SecretKey getKey(final int index) {
+        return index >= 0 && index < keys.length ? keys[index] : null;
+    }
+
+    SecretKey getCurrentKey() {
+        return keys[current];
+    }
+
+    /**
+     * @return the {@link Mac} of the current thread initialized with the key of the given slot
+     * or <code>null</code> if the slot is empty or out of range; the Mac is reset after each
+     * <code>doFinal</code> and can be reused by the calling thread
+     */
+    Mac getMac(final int index) {
+        return index >= 0 && index < macs.length && macs[index] != null ? macs[index].get() : null;
+    }
+
+    /**
+     * @return <code>true</code> if the ring has no current key or the rotation time has passed
+     */
+    boolean isDue(final long now) {
+        return now > nextUpdate || keys[current] == null;
+    }
+
+    /**
+     * Creates the successor of this ring with the new key placed in the next slot
+     * replacing the oldest key.
+     *
+     * @param newKey     the new current key
+     * @param nextUpdate the time of the rotation following this one
+     * @return the new ring of the next generation, this ring is left unchanged
+     */
+    KeyRing rotate(final SecretKey newKey, final long nextUpdate) {
+        final SecretKey[] newKeys = keys.clone();
+        final ThreadLocal<Mac>[] newMacs = macs.clone();
+        final int next = (current + 1) % newKeys.length;
+        newKeys[next] = newKey;
+        newMacs[next] = newMacPool(newKey);
+        return new KeyRing(newKeys, newMacs, next, nextUpdate, generation + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ThreadLocal<Mac>[] newMacPools(final SecretKey[] keys) {
+        final ThreadLocal<Mac>[] pools = new ThreadLocal[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            pools[i] = keys[i] != null ? newMacPool(keys[i]) : null;
+        }
+        return pools;
+    }
+
+    private static ThreadLocal<Mac> newMacPool(final SecretKey key) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                final Mac mac = Mac.getInstance(key.getAlgorithm());
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary format of a persisted {@link KeyRing}, shared by all {@link KeyRingProvider}s.
+ * <p>
+ * The data starts with a magic number followed by the version of the layout.
+ * Layout of version 1, all numbers big endian:
+ * <pre>
+ *  0 int  magic
+ *  4 int  version
+ *  8 long generation
+ * 16 int  current slot
+ * 20 long next update
+ * 28 int  number of slots
+ * 32 the slots, each an int key length (0 for an empty slot) followed by
+ *    {@link #MAX_KEY_LENGTH} bytes of space for the key
+ * </pre>
+ * Data without the magic number is read in the int/long/length prefixed format
+ * written by previous versions as a ring of generation <code>0</code>.
+ */
+final class KeyRingFormat {
+
+    static final int MAGIC = 0x53414d4b;
+    static final int VERSION = 1;
+    static final int GENERATION_OFFSET = 8;
+    static final int HEADER_SIZE = 32;
+    static final int MAX_KEY_LENGTH = 64;
+    static final int SLOT_SIZE = 4 + MAX_KEY_LENGTH;
+
+    private KeyRingFormat() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param header at least the first {@link #HEADER_SIZE} bytes of the data
+     * @return the generation, <code>0</code> for data in the legacy format
+     */
+    static long getGeneration(final ByteBuffer header) {
+        return header.getInt(0) == MAGIC ? header.getLong(GENERATION_OFFSET) : 0L;
+    }
+
+    /**
+     * Serializes the ring.
+     */
+    static ByteBuffer encode(final KeyRing ring) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + ring.size() * SLOT_SIZE);
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(ring.getGeneration())
+                .putInt(ring.getCurrent())
+                .putLong(ring.getNextUpdate())
+                .putInt(ring.size());
+        for (int i = 0; i < ring.size(); i++) {
+            final SecretKey key = ring.getKey(i);
+            final int slot = HEADER_SIZE + i * SLOT_SIZE;
+            if (key != null) {
+                final byte[] b = key.getEncoded();
+                if (b.length > MAX_KEY_LENGTH) {
+                    throw new IllegalStateException("key too long: " + b.length);
+                }
+                buffer.putInt(slot, b.length);
+                buffer.position(slot + 4);
+                buffer.put(b);
+            }
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Reads a ring written by {@link #encode(KeyRing)} or by a previous version.
+     *
+     * @param buffer    the data from position <code>0</code> to the limit
+     * @param algorithm the algorithm of the keys
+     * @param size      the expected number of slots
+     * @throws IOException if the data is not a valid ring
+     */
+    static KeyRing decode(final ByteBuffer buffer, final String algorithm, final int size) throws IOException {
+        final int length = buffer.limit();
+        if (length < 4) {
+            throw new IOException("no key ring data");
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            return decodeLegacy(buffer, algorithm, size);
+        }
+        final int version = length >= HEADER_SIZE ? buffer.getInt(4) : -1;
+        if (version != VERSION) {
+            throw new IOException("unsupported key ring version " + version);
+        }
+        final long generation = buffer.getLong(GENERATION_OFFSET);
+        final int current = buffer.getInt(16);
+        final long nextUpdate = buffer.getLong(20);
+        final int slots = buffer.getInt(28);
+        if (slots != size || current < 0 || current >= slots
+                || length < HEADER_SIZE + (long) slots * SLOT_SIZE) {
+            throw new IOException("invalid key ring layout");
+        }
+        final SecretKey[] keys = new SecretKey[slots];
+        for (int i = 0; i < slots; i++) {
+            final int slot = HEADER_SIZE + i * SLOT_SIZE;
+            final int keyLength = buffer.getInt(slot);
+            if (keyLength < 0 || keyLength > MAX_KEY_LENGTH) {
+                throw new IOException("invalid key length " + keyLength);
+            }
+            if (keyLength > 0) {
+                final byte[] b = new byte[keyLength];
+                buffer.position(slot + 4);
+                buffer.get(b);
+                keys[i] = new SecretKeySpec(b, algorithm);
+            }
+        }
+        return new KeyRing(keys, current, nextUpdate, generation);
+    }
+
+    /**
+     * Reads the int/long/length prefixed format written by previous versions.
+     */
+    private static KeyRing decodeLegacy(final ByteBuffer buffer, final String algorithm, final int size)
+            throws IOException {
+        final byte[] data = new byte[buffer.limit()];
+        buffer.position(0);
+        buffer.get(data);
+        try (DataInputStream keyInputStream = new DataInputStream(new ByteArrayInputStream(data))) {
+            int newCurrentToken = keyInputStream.readInt();
+            long newNextUpdate = keyInputStream.readLong();
+            SecretKey[] newKeys = new SecretKey[size];
+            for (int i = 0; i < newKeys.length; i++) {
+                int isNull = keyInputStream.readInt();
+                if (isNull == 1) {
+                    int l = keyInputStream.readInt();
+                    byte[] b = new byte[l];
+                    keyInputStream.readFully(b);
+                    newKeys[i] = new SecretKeySpec(b, algorithm);
+                } else {
+                    newKeys[i] = null;
+                }
+            }
+            return new KeyRing(newKeys, newCurrentToken, newNextUpdate, 0L);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import java.io.IOException;
+
+/**
+ * The storage of the {@link KeyRing} of a {@link TokenStore}. Several stores - of the
+ * same JVM or of the nodes of a cluster - sharing the same storage share the keys, so
+ * that a token encoded by one node is accepted by all other nodes.
+ * <p>
+ * A stored ring is only replaced by a ring of a newer generation, the first node
+ * storing a generation wins; the other nodes adopt the stored ring.
+ */
+interface KeyRingProvider {
+
+    /**
+     * @return the generation of the stored ring or <code>-1</code> if there is no
+     * readable ring; called periodically, should be cheap
+     */
+    long getGeneration();
+
+    /**
+     * @param algorithm the algorithm of the keys
+     * @param size      the number of slots of the ring
+     * @return the stored ring or <code>null</code> if there is no readable ring
+     */
+    KeyRing load(String algorithm, int size);
+
+    /**
+     * Stores the ring unless a ring of the same or a newer generation is stored already.
+     *
+     * @return <code>true</code> if the ring has been stored
+     * @throws IOException if the ring could not be stored
+     */
+    boolean store(KeyRing ring) throws IOException;
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the key ring in the repository (e.g. below <code>/var</code>) to share it
+ * with all nodes of a cluster. The ring is stored as a binary property in the
+ * {@link KeyRingFormat} together with its generation in a separate property, so that
+ * polling the generation does not read the binary. A concurrent write of the same
+ * generation by another node fails on commit; that node adopts the stored ring.
+ */
+class ResourceKeyRingProvider implements KeyRingProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceKeyRingProvider.class);
+
+    static final String SUBSERVICE_NAME = "Saml2KeyRing";
+
+    static final String PN_GENERATION = "generation";
+    static final String PN_KEY_RING = "keyRing";
+
+    private static final String FOLDER_TYPE = "sling:Folder";
+    private static final String NODE_TYPE = "nt:unstructured";
+
+    private final ResourceResolverFactory resolverFactory;
+
+    private final String path;
+
+    ResourceKeyRingProvider(final ResourceResolverFactory resolverFactory, final String path) {
+        this.resolverFactory = resolverFactory;
+        this.path = path;
+    }
+
+    @Override
+    public long getGeneration() {
+        try (final ResourceResolver resolver = getResolver()) {
+            final Resource resource = resolver.getResource(path);
+            return resource != null ? resource.getValueMap().get(PN_GENERATION, -1L) : -1L;
+        } catch (final LoginException lex) {
+            LOG.error("Could not get SAML2 Service User. Check mapping org.apache.sling.auth.saml2:{}=...", SUBSERVICE_NAME);
+            return -1L;
+        }
+    }
+
+    @Override
+    public KeyRing load(final String algorithm, final int size) {
+        try (final ResourceResolver resolver = getResolver()) {
+            final Resource resource = resolver.getResource(path);
+            if (resource == null) {
+                return null;
+            }
+            try (final InputStream data = resource.getValueMap().get(PN_KEY_RING, InputStream.class)) {
+                return data != null
+                        ? KeyRingFormat.decode(ByteBuffer.wrap(toByteArray(data)), algorithm, size)
+                        : null;
+            }
+        } catch (final LoginException lex) {
+            LOG.error("Could not get SAML2 Service User. Check mapping org.apache.sling.auth.saml2:{}=...", SUBSERVICE_NAME);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to load cookie keys from {}: {}", path, e.getMessage());
+        }
+        return null;
+    }
+
+    @Override
+    public boolean store(final KeyRing ring) throws IOException {
+        try (final ResourceResolver resolver = getResolver()) {
+            Resource resource = resolver.getResource(path);
+            if (resource == null) {
+                final Map<String, Object> properties = new HashMap<>();
+                properties.put("jcr:primaryType", NODE_TYPE);
+                resource = ResourceUtil.getOrCreateResource(resolver, path, properties, FOLDER_TYPE, false);
+            } else if (resource.getValueMap().get(PN_GENERATION, -1L) >= ring.getGeneration()) {
+                return false;
+            }
+            final ModifiableValueMap values = resource.adaptTo(ModifiableValueMap.class);
+            if (values == null) {
+                throw new IOException("cannot modify " + path);
+            }
+            final ByteBuffer data = KeyRingFormat.encode(ring);
+            values.put(PN_GENERATION, ring.getGeneration());
+            values.put(PN_KEY_RING, new ByteArrayInputStream(data.array(), 0, data.limit()));
+            resolver.commit();
+            return true;
+        } catch (final LoginException lex) {
+            throw new IOException("Could not get SAML2 Service User. Check mapping org.apache.sling.auth.saml2:"
+                    + SUBSERVICE_NAME + "=...", lex);
+        } catch (final PersistenceException pex) {
+            throw new IOException("Could not store cookie keys at " + path + ": " + pex.getMessage(), pex);
+        }
+    }
+
+    private static byte[] toByteArray(final InputStream data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int count;
+        while ((count = data.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    protected ResourceResolver getResolver() throws LoginException {
+        return resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_NAME));
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
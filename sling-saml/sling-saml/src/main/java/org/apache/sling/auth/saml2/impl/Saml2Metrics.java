@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * The metrics of the SAML2 service provider; all metrics are kept in the shared
+ * registry named {@link #REGISTRY_NAME} so that a reporter can be attached to them
+ * (<code>SharedMetricRegistries.getOrCreate(REGISTRY_NAME)</code>). The metrics of
+ * all configured handler instances are accumulated.
+ */
+final class Saml2Metrics {
+
+    static final String REGISTRY_NAME = "org.apache.sling.auth.saml2";
+
+    static final MetricRegistry REGISTRY = SharedMetricRegistries.getOrCreate(REGISTRY_NAME);
+
+    private Saml2Metrics() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @return the name of a metric of the given class
+     */
+    static String name(final Class<?> type, final String... names) {
+        return MetricRegistry.name(type, names);
+    }
+}
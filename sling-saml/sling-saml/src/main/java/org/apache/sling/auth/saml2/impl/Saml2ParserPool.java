@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parser pool of the SAML responses posted to the assertion consumer service, owned by
+ * a handler instance instead of the global pool of the OpenSAML configuration.
+ * <p>
+ * The DocumentBuilders are created with a fixed secure feature set (no DTDs, no external
+ * entities) and kept for reuse up to the configured maximum; with reuse switched off each
+ * builder is dropped after its parse. The metrics of all pools are accumulated: the builders
+ * in use, the time to obtain a builder, the builders created and the builders dropped.
+ */
+class Saml2ParserPool extends BasicParserPool {
+
+    static final String IN_USE = Saml2Metrics.name(Saml2ParserPool.class, "inUse");
+    static final String WAIT = Saml2Metrics.name(Saml2ParserPool.class, "wait");
+    static final String CREATED = Saml2Metrics.name(Saml2ParserPool.class, "created");
+    static final String DISCARDED = Saml2Metrics.name(Saml2ParserPool.class, "discarded");
+
+    /**
+     * The features of each DocumentBuilder, not configurable.
+     */
+    static final Map<String, Boolean> SECURE_FEATURES;
+
+    static {
+        final Map<String, Boolean> features = new HashMap<>();
+        features.put(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        features.put("http://apache.org/xml/features/disallow-doctype-decl", true);
+        features.put("http://xml.org/sax/features/external-general-entities", false);
+        features.put("http://xml.org/sax/features/external-parameter-entities", false);
+        features.put("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        SECURE_FEATURES = features;
+    }
+
+    private final Counter inUse = Saml2Metrics.REGISTRY.counter(IN_USE);
+    private final Timer wait = Saml2Metrics.REGISTRY.timer(WAIT);
+    private final Meter created = Saml2Metrics.REGISTRY.meter(CREATED);
+    private final Meter discarded = Saml2Metrics.REGISTRY.meter(DISCARDED);
+
+    private final boolean reuseBuilders;
+
+    /**
+     * @param maxPoolSize   the maximum number of idle builders kept for reuse
+     * @param reuseBuilders <code>false</code> to drop each builder after use
+     */
+    Saml2ParserPool(final int maxPoolSize, final boolean reuseBuilders) throws ComponentInitializationException {
+        this.reuseBuilders = reuseBuilders;
+        setMaxPoolSize(Math.max(1, maxPoolSize));
+        setBuilderFeatures(SECURE_FEATURES);
+        setNamespaceAware(true);
+        setExpandEntityReferences(false);
+        setXincludeAware(false);
+        setIgnoreComments(true);
+        initialize();
+    }
+
+    boolean isReuseBuilders() {
+        return reuseBuilders;
+    }
+
+    @Override
+    public DocumentBuilder getBuilder() throws XMLParserException {
+        final Timer.Context timer = wait.time();
+        try {
+            final DocumentBuilder builder = super.getBuilder();
+            inUse.inc();
+            return builder;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Override
+    public void returnBuilder(final DocumentBuilder builder) {
+        if (builder == null) {
+            return;
+        }
+        inUse.dec();
+        if (reuseBuilders) {
+            super.returnBuilder(builder);
+        } else {
+            discarded.mark();
+        }
+    }
+
+    @Override
+    protected DocumentBuilder createBuilder() throws XMLParserException {
+        created.mark();
+        return super.createBuilder();
+    }
+}
@@ -18,45 +18,67 @@
  */
 package org.apache.sling.auth.saml2.impl;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.auth.saml2.Saml2User;
 import org.apache.sling.auth.saml2.Saml2UserMgtService;
 import org.apache.sling.auth.saml2.Saml2UserMgtServiceConfig;
-import org.opensaml.core.xml.XMLObject;
-import org.opensaml.core.xml.schema.XSString;
 import org.opensaml.saml.saml2.core.Assertion;
-import org.opensaml.saml.saml2.core.Attribute;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.jcr.InvalidItemStateException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFactory;
+import javax.jcr.ValueFormatException;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -78,14 +100,84 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
     public static final Pattern MAIL_ADDR = Pattern.compile("^[^@]+@(?<domain>[^@]+)$");
 
     public static final String PN_LAST_LOGIN = "lastLogin";
+    public static final String PN_SYNC_FINGERPRINT = "saml2SyncFingerprint";
+
+    private static final HashFunction FINGERPRINT = Hashing.sha256();
+
+    static final String COMMITS = Saml2Metrics.name(Saml2UserMgtServiceImpl.class, "commitsPerLogin");
+    static final String RETRIES = Saml2Metrics.name(Saml2UserMgtServiceImpl.class, "commitRetries");
+    static final String SKIPPED_WRITES = Saml2Metrics.name(Saml2UserMgtServiceImpl.class, "skippedWrites");
+    static final String UNCHANGED = Saml2Metrics.name(Saml2UserMgtServiceImpl.class, "unchangedLogins");
+    static final String LOCK_WAITS = Saml2Metrics.name(Saml2UserMgtServiceImpl.class, "lockWaits");
+
+    /**
+     * The maximum number of users whose last login time is kept in memory.
+     */
+    static final int LAST_LOGIN_CACHE_SIZE = 100_000;
+
+    /**
+     * The number of locks serializing the synchronizations of the same user (a power of 2).
+     */
+    static final int LOCK_STRIPES = 64;
+
+    private final Histogram commits = Saml2Metrics.REGISTRY.histogram(COMMITS);
+    private final Meter retries = Saml2Metrics.REGISTRY.meter(RETRIES);
+    private final Meter skippedWrites = Saml2Metrics.REGISTRY.meter(SKIPPED_WRITES);
+    private final Meter unchanged = Saml2Metrics.REGISTRY.meter(UNCHANGED);
+    private final Meter lockWaits = Saml2Metrics.REGISTRY.meter(LOCK_WAITS);
+
+    /**
+     * The locks of the synchronizations, the lock of a user is selected by the hash of its ID; so
+     * parallel logins of a user (e.g. from two tabs) don't both create it and fail on commit
+     */
+    private final Lock[] userLocks = newLocks(LOCK_STRIPES);
 
     @Reference
     private ResourceResolverFactory resolverFactory;
 
+    /**
+     * The security provider of the repository, read for the configured folder of the groups
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private SecurityProvider securityProvider;
+
     private Saml2UserMgtServiceConfig config;
     private ComponentContext componentContext;
     private Map<String, String> syncGroupMap;
     private Map<String, String> syncAttrMap;
+    private AttributeMappingPlan attributeMapping;
+
+    /**
+     * The repository groups managed by the group membership sync and the default groups
+     * (distinct, without blank IDs), both resolved from the configuration on activation
+     */
+    private Set<String> syncGroupIds;
+    private Set<String> defaultGroupIds;
+
+    /**
+     * The hash of the configured groups and properties, part of each fingerprint so that a
+     * configuration change invalidates the stored fingerprints
+     */
+    private HashCode configFingerprint;
+
+    /**
+     * The stored last login times of the users (if a granularity is configured), filled only
+     * with values read from the repository so that an entry is never ahead of a commit
+     */
+    private long lastLoginGranularity;
+    private Cache<String, Long> lastLogins;
+
+    /**
+     * The queue of the asynchronous synchronizations, <code>null</code> if users are synchronized
+     * within the login
+     */
+    private volatile UserSyncQueue syncQueue;
+
+    /**
+     * The resolved paths of the synchronized and the default groups, <code>null</code> if there
+     * are no groups configured or the groups couldn't be resolved on activation
+     */
+    private volatile GroupCache groupCache;
 
     @Activate
     @Modified
@@ -94,71 +186,117 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
         this.componentContext = componentContext;
         this.syncGroupMap = buildKeyMap(config.syncGroups());
         this.syncAttrMap = buildKeyMap(config.syncAttrs());
+        this.attributeMapping = new AttributeMappingPlan(config.saml2userIDAttr(), config.saml2groupMembershipAttr(),
+                syncGroupMap, syncAttrMap);
+        this.syncGroupIds = buildIdSet(syncGroupMap.values().toArray(new String[0]));
+        this.defaultGroupIds = buildIdSet(config.defaultGroups());
+        final Hasher hasher = FINGERPRINT.newHasher();
+        putStrings(hasher, new TreeSet<>(syncGroupIds));
+        putStrings(hasher, new TreeSet<>(defaultGroupIds));
+        putStrings(hasher, new TreeSet<>(syncAttrMap.values()));
+        this.configFingerprint = hasher.hash();
+        this.lastLoginGranularity = TimeUnit.SECONDS.toMillis(Math.max(0, config.lastLoginGranularity()));
+        this.lastLogins = lastLoginGranularity > 0
+                ? CacheBuilder.newBuilder().maximumSize(LAST_LOGIN_CACHE_SIZE)
+                .expireAfterWrite(lastLoginGranularity, TimeUnit.MILLISECONDS).<String, Long>build()
+                : null;
+        openGroupCache();
+        final UserSyncQueue previous = syncQueue;
+        syncQueue = config.syncWorkers() > 0
+                ? new UserSyncQueue(config.syncWorkers(), config.syncQueueCapacity(),
+                samlUser -> performUserSynchronization(samlUser, null))
+                : null;
+        if (previous != null) {
+            previous.close();
+        }
     }
 
-    @Deactivate
-    protected void deactivate() {
-        this.componentContext = null;
-        this.config = null;
+    /**
+     * Resolves the configured groups with a service session kept open for the group listener.
+     */
+    protected void openGroupCache() {
+        closeGroupCache();
+        final Set<String> groupIds = new LinkedHashSet<>(syncGroupIds);
+        groupIds.addAll(defaultGroupIds);
+        if (groupIds.isEmpty()) {
+            return;
+        }
+        ResourceResolver resolver = null;
+        try {
+            resolver = resolverFactory.getServiceResourceResolver(
+                    Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_NAME));
+            final JackrabbitSession session = resolver != null ? (JackrabbitSession) resolver.adaptTo(Session.class) : null;
+            if (session != null) {
+                groupCache = new GroupCache(resolver, session, groupIds, getGroupsPath());
+                resolver = null;
+            } else {
+                LOG.warn("Could not resolve the SAML2 groups; JackrabbitSession was null.");
+            }
+        } catch (final LoginException lex) {
+            LOG.error("Could not get SAML2 Service User. Check mapping org.apache.sling.auth.saml2:{}=...", SUBSERVICE_NAME);
+        } catch (final RepositoryException ex) {
+            LOG.error("Could not resolve the SAML2 groups", ex);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
     }
 
-    // prepare / collect
-
-    @Override
-    public void applySaml2Attributes(@Nonnull final Assertion assertion, @Nonnull final Saml2User samlUser) {
-        for (Attribute attribute : assertion.getAttributeStatements().get(0).getAttributes()) {
-            applyUserId(attribute, samlUser);
-            applyGroupMembership(attribute, samlUser);
-            applyUserProperty(attribute, samlUser);
+    /**
+     * @return the folder of the groups configured in the repository, <code>null</code> if there
+     * is no security provider to ask
+     */
+    @Nullable
+    protected String getGroupsPath() {
+        final SecurityProvider provider = securityProvider;
+        if (provider == null) {
+            return null;
         }
+        return provider.getConfiguration(UserConfiguration.class).getParameters()
+                .getConfigValue(UserConstants.PARAM_GROUP_PATH, UserConstants.DEFAULT_GROUP_PATH);
     }
 
-    protected void applyUserId(Attribute attribute, Saml2User saml2User) {
-        if (attribute.getName().equals(config.saml2userIDAttr())) {
-            for (XMLObject attributeValue : attribute.getAttributeValues()) {
-                final String value = ((XSString) attributeValue).getValue();
-                if (StringUtils.isNotBlank(value)) {
-                    saml2User.setId(value);
-                    LOG.debug("username value: {}", saml2User.getId());
-                }
-            }
+    protected void closeGroupCache() {
+        final GroupCache cache = groupCache;
+        groupCache = null;
+        if (cache != null) {
+            cache.close();
         }
     }
 
-    protected void applyGroupMembership(@Nonnull final Attribute attribute, @Nonnull final Saml2User saml2User) {
-        if (attribute.getName().equals(config.saml2groupMembershipAttr())) {
-            for (final XMLObject attributeValue : attribute.getAttributeValues()) {
-                final String groupKey = ((XSString) attributeValue).getValue();
-                if (StringUtils.isNotBlank(groupKey)) {
-                    final String groupId = syncGroupMap.get(groupKey);
-                    if (StringUtils.isNotBlank(groupId)) {
-                        saml2User.addGroupMembership(groupId);
-                        LOG.debug("group '{}' added: '{}'", groupKey, groupId);
-                    } else {
-                        LOG.debug("group '{}' ignored", groupKey);
-                    }
-                }
-            }
+    @Deactivate
+    protected void deactivate() {
+        final UserSyncQueue queue = syncQueue;
+        syncQueue = null;
+        if (queue != null) {
+            queue.close();
         }
+        closeGroupCache();
+        this.componentContext = null;
+        this.config = null;
     }
 
-    protected void applyUserProperty(Attribute attribute, Saml2User saml2User) {
-        final String propertyName = syncAttrMap.get(attribute.getName());
-        if (StringUtils.isNotBlank(propertyName)) {
-            for (final XMLObject attributeValue : attribute.getAttributeValues()) {
-                final String value = ((XSString) attributeValue).getValue();
-                if (value != null) {
-                    saml2User.addUserProperty(propertyName, attributeValue);
-                    LOG.debug("sync attr '{}': '{}' = '{}'", attribute.getName(), propertyName, value);
-                }
-            }
-        }
+    // prepare / collect
+
+    @Override
+    public void applySaml2Attributes(@Nonnull final Assertion assertion, @Nonnull final Saml2User samlUser) {
+        attributeMapping.apply(assertion, samlUser);
     }
 
     // perform
 
     @Override
     public User performUserSynchronization(@Nonnull final Saml2User samlUser) {
+        return performUserSynchronization(samlUser, syncQueue);
+    }
+
+    /**
+     * @param queue the queue for the synchronization of a known user or <code>null</code> to
+     *              synchronize the user immediately
+     */
+    @Nullable
+    protected User performUserSynchronization(@Nonnull final Saml2User samlUser, @Nullable final UserSyncQueue queue) {
         User user = null;
         final String userId = samlUser.getId();
         if (StringUtils.isNotBlank(userId)) {
@@ -166,13 +304,10 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
                     Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_NAME))) {
                 final JackrabbitSession session = (JackrabbitSession) resolver.adaptTo(Session.class);
                 if (session != null) {
-                    user = getOrCreateSamlUser(session, samlUser);
-                    if (user != null) {
-                        updateGroupMembership(session, samlUser, user);
-                        updateGroupMembership(session, config.defaultGroups(), user);
-                        updateUserProperties(session, samlUser, user);
-                        updateLastLogin(session, user);
-                    } else {
+                    user = queue != null
+                            ? synchronizeQueued(session, samlUser, queue)
+                            : synchronize(session, samlUser);
+                    if (user == null) {
                         LOG.error("Could not sync user '{}'; user was null.", userId);
                     }
                 } else {
@@ -189,6 +324,227 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
         return user;
     }
 
+    /**
+     * Synchronizes the user while holding the lock of its stripe; a rejected single commit is
+     * retried after a growing delay, which is waited for without holding the lock so that other
+     * users of the stripe are not held up.
+     */
+    @Nullable
+    protected User synchronize(@Nonnull final JackrabbitSession session, @Nonnull final Saml2User samlUser)
+            throws RepositoryException {
+        if (!config.syncSingleCommit()) {
+            final Lock lock = lockUser(session, samlUser.getId());
+            try {
+                return synchronizeStepwise(session, samlUser);
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (int retry = 0; ; retry++) {
+            final Lock lock = lockUser(session, samlUser.getId());
+            try {
+                return synchronizeInOneCommit(session, samlUser);
+            } catch (InvalidItemStateException ex) {
+                session.refresh(false);
+                if (retry >= config.syncCommitRetries()) {
+                    throw ex;
+                }
+                retries.mark();
+                LOG.debug("sync of '{}' failed ({}), retry {}", samlUser.getId(), ex.getMessage(), retry + 1);
+            } finally {
+                lock.unlock();
+            }
+            backoff(retry);
+        }
+    }
+
+    /**
+     * Acquires the lock of the user's stripe; if another synchronization holds it, the session
+     * is refreshed after the wait to see its changes.
+     */
+    @Nonnull
+    private Lock lockUser(@Nonnull final JackrabbitSession session, @Nonnull final String userId)
+            throws RepositoryException {
+        final Lock lock = getUserLock(userId);
+        if (!lock.tryLock()) {
+            lockWaits.mark();
+            lock.lock();
+            try {
+                session.refresh(true);
+            } catch (RepositoryException | RuntimeException ex) {
+                lock.unlock();
+                throw ex;
+            }
+        }
+        return lock;
+    }
+
+    @Nonnull
+    protected Lock getUserLock(@Nonnull final String userId) {
+        final int hash = userId.hashCode();
+        return userLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Resolves a known user and queues the synchronization of its groups and properties; a new
+     * user is synchronized immediately because its groups are needed for its first request.
+     */
+    @Nullable
+    protected User synchronizeQueued(@Nonnull final JackrabbitSession session, @Nonnull final Saml2User samlUser,
+                                     @Nonnull final UserSyncQueue queue)
+            throws RepositoryException {
+        final Authorizable authorizable = session.getUserManager().getAuthorizable(samlUser.getId());
+        if (authorizable != null && !authorizable.isGroup() && authorizable instanceof User) {
+            queue.submit(samlUser);
+            return (User) authorizable;
+        }
+        return synchronize(session, samlUser);
+    }
+
+    /**
+     * Stages all changes of the synchronization and saves them at once; a commit rejected because
+     * of a concurrent modification (e.g. a parallel login of the same user or a change of a group)
+     * fails with an {@link InvalidItemStateException} and is retried by {@link #synchronize}.
+     */
+    @Nullable
+    protected User synchronizeInOneCommit(@Nonnull final JackrabbitSession session, @Nonnull final Saml2User samlUser)
+            throws RepositoryException {
+        final User user = getOrCreateSamlUser(session, samlUser);
+        if (user != null) {
+            final String fingerprint = config.syncFingerprint() ? fingerprint(samlUser) : null;
+            if (!isUnchanged(user, fingerprint)) {
+                final Set<String> declaredGroups = getDeclaredGroups(user);
+                boolean resolved = updateGroupMembership(session, samlUser, user, declaredGroups);
+                resolved &= updateGroupMembership(session, defaultGroupIds, user, declaredGroups);
+                updateUserProperties(session, samlUser, user);
+                if (resolved) {
+                    updateFingerprint(session, user, fingerprint);
+                }
+            }
+            updateLastLogin(session, user);
+        }
+        commits.update(commit(session));
+        return user;
+    }
+
+    /**
+     * Saves each step of the synchronization separately (the former behavior).
+     */
+    @Nullable
+    protected User synchronizeStepwise(@Nonnull final JackrabbitSession session, @Nonnull final Saml2User samlUser)
+            throws RepositoryException {
+        int count = 0;
+        final User user = getOrCreateSamlUser(session, samlUser);
+        count += commit(session);
+        if (user != null) {
+            final String fingerprint = config.syncFingerprint() ? fingerprint(samlUser) : null;
+            if (!isUnchanged(user, fingerprint)) {
+                final Set<String> declaredGroups = getDeclaredGroups(user);
+                boolean resolved = updateGroupMembership(session, samlUser, user, declaredGroups);
+                count += commit(session);
+                resolved &= updateGroupMembership(session, defaultGroupIds, user, declaredGroups);
+                count += commit(session);
+                updateUserProperties(session, samlUser, user);
+                if (resolved) {
+                    updateFingerprint(session, user, fingerprint);
+                }
+                count += commit(session);
+            }
+            updateLastLogin(session, user);
+            try {
+                count += commit(session);
+            } catch (RepositoryException ex) {
+                session.refresh(false);
+                LOG.warn("Ignored error updating last login time for '" + user.getID() + "'", ex);
+            }
+        }
+        commits.update(count);
+        return user;
+    }
+
+    /**
+     * @return <code>true</code> if the fingerprint stored on the user matches, so that the
+     * synchronization of groups and properties can be skipped
+     */
+    protected boolean isUnchanged(@Nonnull final User user, @Nullable final String fingerprint)
+            throws RepositoryException {
+        if (fingerprint != null && isStoredValue(user, PN_SYNC_FINGERPRINT, fingerprint)) {
+            unchanged.mark();
+            LOG.debug("user '{}' unchanged", user.getID());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores the fingerprint; only done if all groups to change were found, otherwise a group
+     * created later would never be applied to the user.
+     */
+    protected void updateFingerprint(@Nonnull final JackrabbitSession session, @Nonnull final User user,
+                                     @Nullable final String fingerprint)
+            throws RepositoryException {
+        if (fingerprint != null) {
+            user.setProperty(PN_SYNC_FINGERPRINT, session.getValueFactory().createValue(fingerprint));
+        }
+    }
+
+    /**
+     * @return the hash of the ID, the groups and the properties of the user (independent of their
+     * order) and of the configuration
+     */
+    @Nonnull
+    String fingerprint(@Nonnull final Saml2User samlUser) {
+        final Hasher hasher = FINGERPRINT.newHasher();
+        hasher.putBytes(configFingerprint.asBytes());
+        putString(hasher, samlUser.getId());
+        putStrings(hasher, new TreeSet<>(samlUser.getGroupMembership()));
+        final Map<String, String> properties = new TreeMap<>(samlUser.getUserProperties());
+        hasher.putInt(properties.size());
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            putString(hasher, property.getKey());
+            putString(hasher, property.getValue());
+        }
+        return hasher.hash().toString();
+    }
+
+    private static void putStrings(@Nonnull final Hasher hasher, @Nonnull final Set<String> values) {
+        hasher.putInt(values.size());
+        for (String value : values) {
+            putString(hasher, value);
+        }
+    }
+
+    private static void putString(@Nonnull final Hasher hasher, @Nullable final String value) {
+        if (value != null) {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        } else {
+            hasher.putInt(-1);
+        }
+    }
+
+    /**
+     * @return the number of commits done: 1 if there were changes to save, otherwise 0
+     */
+    protected int commit(@Nonnull final Session session) throws RepositoryException {
+        if (session.hasPendingChanges()) {
+            session.save();
+            return 1;
+        }
+        return 0;
+    }
+
+    private void backoff(final int retry) throws InvalidItemStateException {
+        final long delay = (long) Math.max(0, config.syncRetryBackoff()) << Math.min(retry, 10);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InvalidItemStateException("user synchronization interrupted");
+            }
+        }
+    }
+
     @Nullable
     protected User getOrCreateSamlUser(@Nonnull final JackrabbitSession session, @Nonnull final Saml2User samlUser)
             throws RepositoryException {
@@ -203,7 +559,6 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
         } else {
             final Principal principal = new SimplePrincipal(userId);
             user = userManager.createUser(userId, null, principal, getIntermediatePath(userId));
-            session.save();
         }
         return user;
     }
@@ -249,51 +604,116 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
         return intermediatePath.length() > 0 ? intermediatePath.toString() : null;
     }
 
+    /**
+     * @return the IDs of the groups the user is a declared (direct) member of
+     */
+    @Nonnull
+    protected Set<String> getDeclaredGroups(@Nonnull final User user) throws RepositoryException {
+        final Set<String> groupIds = new HashSet<>();
+        final Iterator<Group> groups = user.declaredMemberOf();
+        while (groups.hasNext()) {
+            groupIds.add(groups.next().getID());
+        }
+        return groupIds;
+    }
+
     protected void updateGroupMembership(@Nonnull final JackrabbitSession session,
                                          @Nonnull final Saml2User samlUser, @Nonnull final User user)
             throws RepositoryException {
-        final UserManager userManager = session.getUserManager();
-        // iterate all mapped groups
-        for (final String groupId : syncGroupMap.values()) {
-            Authorizable authorizable = userManager.getAuthorizable(groupId);
-            if (authorizable != null && authorizable.isGroup()) {
-                Group group = (Group) authorizable;
-                boolean hasGroup = samlUser.getGroupMembership().contains(groupId);
-                LOG.debug("group '{}' member {}", groupId, hasGroup);
-                if (hasGroup) {
-                    if (!group.isMember(user)) {
+        updateGroupMembership(session, samlUser, user, getDeclaredGroups(user));
+    }
+
+    /**
+     * Adds the user to the mapped groups of its SAML groups and removes it from all other mapped
+     * groups; only the groups whose membership changes are looked up in the repository.
+     *
+     * @param declaredGroups the groups of the user before the update, updated with the changes
+     * @return <code>false</code> if a group to change was not found
+     */
+    protected boolean updateGroupMembership(@Nonnull final JackrabbitSession session,
+                                         @Nonnull final Saml2User samlUser, @Nonnull final User user,
+                                         @Nonnull final Set<String> declaredGroups)
+            throws RepositoryException {
+        boolean resolved = true;
+        final Set<String> samlGroups = samlUser.getGroupMembership();
+        for (final String groupId : syncGroupIds) {
+            final boolean hasGroup = samlGroups.contains(groupId);
+            if (hasGroup != declaredGroups.contains(groupId)) {
+                final Group group = getGroup(session, groupId);
+                if (group != null) {
+                    LOG.debug("group '{}' member {}", groupId, hasGroup);
+                    if (hasGroup) {
                         group.addMember(user);
-                    }
-                } else {
-                    if (group.isMember(user)) {
+                        declaredGroups.add(groupId);
+                    } else {
                         group.removeMember(user);
+                        declaredGroups.remove(groupId);
                     }
+                } else {
+                    resolved = false;
                 }
             }
         }
-        session.save();
+        return resolved;
     }
 
     protected void updateGroupMembership(@Nonnull final JackrabbitSession session,
                                          @Nullable final String[] groupIds, @Nonnull final User user)
             throws RepositoryException {
-        if (groupIds != null && groupIds.length > 0) {
-            final UserManager userManager = session.getUserManager();
-            // iterate all mapped groups
-            for (final String groupId : groupIds) {
-                Authorizable authorizable = userManager.getAuthorizable(groupId);
-                if (authorizable != null && authorizable.isGroup()) {
-                    Group group = (Group) authorizable;
-                    LOG.debug("group '{}' member {}", groupId, group.isMember(user));
-                    if (!group.isMember(user)) {
-                        group.addMember(user);
-                    }
+        updateGroupMembership(session, buildIdSet(groupIds), user, getDeclaredGroups(user));
+    }
+
+    /**
+     * Adds the user to each of the given groups it is not yet a declared member of.
+     *
+     * @param declaredGroups the groups of the user before the update, updated with the changes
+     * @return <code>false</code> if a group to change was not found
+     */
+    protected boolean updateGroupMembership(@Nonnull final JackrabbitSession session,
+                                         @Nonnull final Set<String> groupIds, @Nonnull final User user,
+                                         @Nonnull final Set<String> declaredGroups)
+            throws RepositoryException {
+        boolean resolved = true;
+        for (final String groupId : groupIds) {
+            if (!declaredGroups.contains(groupId)) {
+                final Group group = getGroup(session, groupId);
+                if (group != null) {
+                    LOG.debug("group '{}' member added", groupId);
+                    group.addMember(user);
+                    declaredGroups.add(groupId);
                 } else {
-                    LOG.warn("Group '{}' not found or not a group.", groupId);
+                    LOG.debug("group '{}' not found", groupId);
+                    resolved = false;
                 }
             }
-            session.save();
         }
+        return resolved;
+    }
+
+    /**
+     * @return the group of the session, bound by its cached path if the group has been resolved
+     * on activation; <code>null</code> if the group doesn't exist
+     */
+    @Nullable
+    protected Group getGroup(@Nonnull final JackrabbitSession session, @Nonnull final String groupId)
+            throws RepositoryException {
+        final UserManager userManager = session.getUserManager();
+        final GroupCache cache = groupCache;
+        if (cache != null) {
+            if (cache.isMissing(groupId)) {
+                return null;
+            }
+            final String path = cache.getPath(groupId);
+            if (path != null) {
+                final Authorizable authorizable = userManager.getAuthorizableByPath(path);
+                if (authorizable != null && authorizable.isGroup() && groupId.equals(authorizable.getID())) {
+                    return (Group) authorizable;
+                }
+                LOG.debug("group '{}' not found at '{}'", groupId, path);
+            }
+        }
+        final Authorizable authorizable = userManager.getAuthorizable(groupId);
+        return authorizable != null && authorizable.isGroup() ? (Group) authorizable : null;
     }
 
     protected void updateUserProperties(@Nonnull final JackrabbitSession session,
@@ -301,24 +721,87 @@ public class Saml2UserMgtServiceImpl implements Saml2UserMgtService {
             throws RepositoryException {
         ValueFactory valueFactory = session.getValueFactory();
         for (Map.Entry<String, String> entry : samlUser.getUserProperties().entrySet()) {
-            user.setProperty(entry.getKey(), valueFactory.createValue(entry.getValue()));
+            if (isStoredValue(user, entry.getKey(), entry.getValue())) {
+                skippedWrites.mark();
+            } else {
+                user.setProperty(entry.getKey(), valueFactory.createValue(entry.getValue()));
+            }
         }
-        session.save();
+    }
+
+    /**
+     * @return <code>true</code> if the property of the user has already the given value
+     */
+    protected boolean isStoredValue(@Nonnull final User user, @Nonnull final String name, @Nullable final String value)
+            throws RepositoryException {
+        final Value[] stored = user.getProperty(name);
+        return stored != null && stored.length == 1 && stored[0].getString().equals(value);
     }
 
     protected void updateLastLogin(@Nonnull final JackrabbitSession session, @Nonnull final User user)
             throws RepositoryException {
         try {
-            final Value now = session.getValueFactory().createValue(Calendar.getInstance());
-            user.setProperty(PN_LAST_LOGIN, now);
-            session.save();
+            final Calendar now = Calendar.getInstance();
+            if (isLastLoginCurrent(user, now.getTimeInMillis())) {
+                skippedWrites.mark();
+                return;
+            }
+            user.setProperty(PN_LAST_LOGIN, session.getValueFactory().createValue(now));
         } catch (RepositoryException ex) {
             LOG.warn("Ignored error updating last login time for '" + user.getID() + "'", ex);
         }
     }
 
+    /**
+     * @return <code>true</code> if the stored last login time is less than the configured
+     * granularity before <code>now</code>
+     */
+    protected boolean isLastLoginCurrent(@Nonnull final User user, final long now) throws RepositoryException {
+        if (lastLogins == null) {
+            return false;
+        }
+        final String userId = user.getID();
+        Long lastLogin = lastLogins.getIfPresent(userId);
+        if (lastLogin == null) {
+            final Value[] stored = user.getProperty(PN_LAST_LOGIN);
+            if (stored == null || stored.length == 0) {
+                return false;
+            }
+            try {
+                lastLogin = stored[0].getDate().getTimeInMillis();
+            } catch (ValueFormatException ex) {
+                return false; // overwritten with a valid date
+            }
+            if (now - lastLogin < lastLoginGranularity) {
+                lastLogins.put(userId, lastLogin);
+            }
+        }
+        return now - lastLogin < lastLoginGranularity;
+    }
+
     // helpers
 
+    private static Lock[] newLocks(final int count) {
+        final Lock[] locks = new Lock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    @Nonnull
+    static Set<String> buildIdSet(@Nullable final String[] ids) {
+        final Set<String> set = new LinkedHashSet<>();
+        if (ids != null) {
+            for (String id : ids) {
+                if (StringUtils.isNotBlank(id)) {
+                    set.add(id);
+                }
+            }
+        }
+        return set;
+    }
+
     public static Map<String, String> buildKeyMap(@Nullable final String[] keys) {
         Map<String, String> map = new LinkedHashMap<>();
         if (keys != null) {
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import org.apache.sling.auth.saml2.SAML2RuntimeException;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Unmarshaller;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.decoder.MessageDecodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.saml.common.messaging.context.SAMLBindingContext;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.binding.decoding.impl.HTTPPostDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Decodes the SAML response posted to the assertion consumer service with a size limit.
+ * <p>
+ * A request announcing a larger body is rejected before anything is read. In the streaming
+ * mode the form body is read directly: the <code>SAMLResponse</code> field is URL decoded and
+ * base64 decoded on the fly into the XML parser, so neither the encoded nor the decoded
+ * response is held as a whole in memory, and the request is rejected as soon as the limit
+ * is exceeded. If the body is not available (another component has read the parameters
+ * already) the parameter value is checked and decoded with the OpenSAML decoder.
+ */
+class SamlResponseDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SamlResponseDecoder.class);
+
+    static final String SAML_RESPONSE = "SAMLResponse";
+    static final String RELAY_STATE = "RelayState";
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private static final int MAX_FIELD_NAME = 64;
+
+    /**
+     * Signals a response rejected because of its size.
+     */
+    static class SizeLimitExceededException extends SAML2RuntimeException {
+
+        SizeLimitExceededException(final long limit) {
+            super("SAML response exceeds the limit of " + limit + " bytes");
+        }
+    }
+
+    private final ParserPool parserPool;
+    private final long maxSize;
+    private final boolean streaming;
+
+    /**
+     * @param parserPool the pool of the XML parsers
+     * @param maxSize    the maximum size of the posted form in bytes, 0 for no limit
+     * @param streaming  <code>true</code> to decode the response directly from the request body
+     */
+    SamlResponseDecoder(final ParserPool parserPool, final long maxSize, final boolean streaming) {
+        this.parserPool = parserPool;
+        this.maxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+        this.streaming = streaming;
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return the context with the decoded response and the relay state in the {@link SAMLBindingContext}
+     * @throws SizeLimitExceededException if the request exceeds the configured size
+     * @throws SAML2RuntimeException      if the response can't be decoded
+     */
+    MessageContext decode(final HttpServletRequest request) {
+        final long contentLength = request.getContentLength();
+        if (contentLength > maxSize) {
+            throw new SizeLimitExceededException(maxSize);
+        }
+        if (streaming && "POST".equals(request.getMethod()) && isForm(request)) {
+            final MessageContext messageContext = decodeStream(request);
+            if (messageContext != null) {
+                return messageContext;
+            }
+        }
+        final String samlResponse = request.getParameter(SAML_RESPONSE);
+        if (samlResponse != null && samlResponse.length() > maxSize) {
+            throw new SizeLimitExceededException(maxSize);
+        }
+        return decodeParameter(request);
+    }
+
+    private static boolean isForm(final HttpServletRequest request) {
+        final String contentType = request.getContentType();
+        return contentType != null && contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0, FORM_CONTENT_TYPE.length());
+    }
+
+    /**
+     * @return the decoded context or <code>null</code> if the body contains no SAML response
+     */
+    MessageContext decodeStream(final HttpServletRequest request) {
+        final InputStream body;
+        try {
+            body = request.getInputStream();
+        } catch (IOException | IllegalStateException e) {
+            logger.debug("request body not available: {}", e.toString());
+            return null;
+        }
+        if (body == null) {
+            return null;
+        }
+        final LimitedInputStream input = new LimitedInputStream(new BufferedInputStream(body), maxSize);
+        try {
+            XMLObject message = null;
+            String relayState = null;
+            String name;
+            while ((name = readFieldName(input)) != null) {
+                final FieldInputStream value = new FieldInputStream(input);
+                if (SAML_RESPONSE.equals(name) && message == null) {
+                    message = unmarshall(Base64.getMimeDecoder().wrap(value), input);
+                } else if (RELAY_STATE.equals(name)) {
+                    relayState = value.readString();
+                }
+                value.skipRemaining();
+            }
+            if (message == null) {
+                return null;
+            }
+            return buildContext(message, relayState);
+        } catch (IOException e) {
+            if (input.isExceeded()) {
+                throw new SizeLimitExceededException(maxSize);
+            }
+            throw new SAML2RuntimeException(e);
+        }
+    }
+
+    private XMLObject unmarshall(final InputStream xml, final LimitedInputStream input) throws IOException {
+        try {
+            final Element element = parserPool.parse(xml).getDocumentElement();
+            final Unmarshaller unmarshaller = XMLObjectProviderRegistrySupport.getUnmarshallerFactory()
+                    .getUnmarshaller(element);
+            if (unmarshaller == null) {
+                throw new SAML2RuntimeException("No unmarshaller for " + element.getLocalName());
+            }
+            return unmarshaller.unmarshall(element);
+        } catch (XMLParserException e) {
+            if (input.isExceeded()) {
+                throw new SizeLimitExceededException(maxSize);
+            }
+            throw new SAML2RuntimeException(e);
+        } catch (UnmarshallingException e) {
+            throw new SAML2RuntimeException(e);
+        }
+    }
+
+    private static MessageContext buildContext(final XMLObject message, final String relayState) {
+        if (!(message instanceof SAMLObject)) {
+            throw new SAML2RuntimeException("Posted message is not a SAML object");
+        }
+        final MessageContext messageContext = new MessageContext();
+        messageContext.setMessage(message);
+        final SAMLBindingContext bindingContext = messageContext.getSubcontext(SAMLBindingContext.class, true);
+        bindingContext.setRelayState(relayState);
+        bindingContext.setBindingUri(SAMLConstants.SAML2_POST_BINDING_URI);
+        bindingContext.setHasBindingSignature(false);
+        bindingContext.setIntendedDestinationEndpointURIRequired(
+                message instanceof SignableSAMLObject && ((SignableSAMLObject) message).isSigned());
+        return messageContext;
+    }
+
+    private MessageContext decodeParameter(final HttpServletRequest request) {
+        HTTPPostDecoder httpPostDecoder = new HTTPPostDecoder();
+        httpPostDecoder.setParserPool(parserPool);
+        httpPostDecoder.setHttpServletRequest(request);
+        try {
+            httpPostDecoder.initialize();
+            httpPostDecoder.decode();
+            return httpPostDecoder.getMessageContext();
+        } catch (MessageDecodingException e) {
+            logger.error("MessageDecodingException");
+            throw new SAML2RuntimeException(e);
+        } catch (ComponentInitializationException e) {
+            throw new SAML2RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the URL decoded name of the next form field with a value (the '=' is consumed) or
+     * <code>null</code> at the end of the body; fields without value or with an overlong name are skipped
+     */
+    private static String readFieldName(final InputStream input) throws IOException {
+        final ByteArrayOutputStream name = new ByteArrayOutputStream();
+        int c;
+        while ((c = input.read()) >= 0) {
+            if (c == '=') {
+                return urlDecode(name.toByteArray());
+            }
+            if (c == '&' || name.size() >= MAX_FIELD_NAME) {
+                while (c >= 0 && c != '&') {
+                    c = input.read();
+                }
+                name.reset();
+            } else {
+                name.write(c);
+            }
+        }
+        return null;
+    }
+
+    private static String urlDecode(final byte[] bytes) throws IOException {
+        final FieldInputStream decoder = new FieldInputStream(new ByteArrayInputStream(bytes));
+        return decoder.readString();
+    }
+
+    /**
+     * The URL decoded value of a form field, ends before the next '&amp;'.
+     */
+    static class FieldInputStream extends InputStream {
+
+        private final InputStream input;
+        private boolean end;
+
+        FieldInputStream(final InputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (end) {
+                return -1;
+            }
+            final int c = input.read();
+            switch (c) {
+                case -1:
+                case '&':
+                    end = true;
+                    return -1;
+                case '+':
+                    return ' ';
+                case '%':
+                    return (hex(input.read()) << 4) | hex(input.read());
+                default:
+                    return c;
+            }
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count = 0;
+            int c;
+            while (count < length && (c = read()) >= 0) {
+                buffer[offset + count++] = (byte) c;
+            }
+            return count > 0 ? count : -1;
+        }
+
+        String readString() throws IOException {
+            final ByteArrayOutputStream value = new ByteArrayOutputStream();
+            int c;
+            while ((c = read()) >= 0) {
+                value.write(c);
+            }
+            return new String(value.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        void skipRemaining() throws IOException {
+            while (!end) {
+                final int c = input.read();
+                end = c < 0 || c == '&';
+            }
+        }
+
+        private static int hex(final int c) throws IOException {
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                throw new IOException("invalid URL encoding");
+            }
+            return digit;
+        }
+    }
+
+    /**
+     * Counts the bytes read and fails if the limit is exceeded.
+     */
+    static class LimitedInputStream extends InputStream {
+
+        private final InputStream input;
+        private final long limit;
+        private long count;
+        private boolean exceeded;
+
+        LimitedInputStream(final InputStream input, final long limit) {
+            this.input = input;
+            this.limit = limit;
+        }
+
+        boolean isExceeded() {
+            return exceeded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = input.read();
+            if (c >= 0 && ++count > limit) {
+                exceeded = true;
+                throw new IOException("size limit exceeded");
+            }
+            return c;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int read = input.read(buffer, offset, length);
+            if (read > 0 && (count += read) > limit) {
+                exceeded = true;
+                throw new IOException("size limit exceeded");
+            }
+            return read;
+        }
+    }
+}
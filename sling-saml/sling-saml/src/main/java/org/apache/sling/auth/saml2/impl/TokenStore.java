@@ -18,21 +18,22 @@
 
 package org.apache.sling.auth.saml2.impl;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
+import com.codahale.metrics.Timer;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,24 +55,39 @@ class TokenStore {
      */
     private static final char[] TOHEX = "0123456789abcdef".toCharArray();
 
-    /**
-     * Name of the <code>SecureRandom</code> generator algorithm
-     */
-    private static final String SHA1PRNG = "SHA1PRNG";
-
     /**
      * The name of the HMAC function to calculate the hash code of the payload
      * with the secure token.
      */
-    private static final String ALGORITHM = "HmacSHA256";
+    static final String ALGORITHM = "HmacSHA256";
 
     /**
      * String encoding to convert byte arrays to strings and vice-versa.
      */
     private static final String UTF_8 = "UTF-8";
 
-    /** The number of secret keys in the token buffer currentTokens */
-    private static final int TOKEN_BUFFER_SIZE = 5;
+    /** The number of secret keys in the key ring */
+    static final int TOKEN_BUFFER_SIZE = 5;
+
+    /** The maximum number of digits of a token expiry time */
+    private static final int MAX_TIME_DIGITS = 18;
+
+    /** The per thread buffers used to validate tokens without creating garbage */
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /** The delay (in ms) before a failed rotation is repeated */
+    private static final long ROTATION_RETRY_DELAY = 60L * 1000L;
+
+    /** The delay (in ms) of a write to collect further rotations into the same write */
+    private static final long WRITE_DELAY = 100L;
+
+    /** The maximum time (in ms) {@link #close()} waits for a running rotation */
+    private static final long CLOSE_TIMEOUT = 5L * 1000L;
+
+    /** The default interval (in ms) of the checks for a ring written by another instance */
+    static final long RELOAD_INTERVAL = 10L * 1000L;
+
+    static final String WRITES = Saml2Metrics.name(TokenStore.class, "writes");
 
     public final Logger log = LoggerFactory.getLogger(TokenStore.class);
 
@@ -81,30 +97,38 @@ class TokenStore {
     private final long ttl;
 
     /**
-     * The time when a new token should be created.
+     * The current snapshot of the tokens used to encrypt, replaced atomically on rotation.
      */
-    private long nextUpdate = System.currentTimeMillis();
+    private final AtomicReference<KeyRing> keyRing = new AtomicReference<>();
 
     /**
-     * The location of the current token.
+     * The background thread which rotates the key ring and persists the rotated ring.
      */
-    private volatile int currentToken = 0;
+    private final ScheduledThreadPoolExecutor rotationExecutor;
 
     /**
-     * A ring of tokens used to encrypt.
+     * The latest rotated ring not stored yet, <code>null</code> if there is none; a
+     * rotated ring replaces the current ring only after it has been stored.
      */
-    private SecretKey[] currentTokens;
+    private final AtomicReference<KeyRing> pendingWrite = new AtomicReference<>();
 
     /**
-     * A secure random used for generating new tokens.
+     * Serializes the writes of the token file; a write is never overtaken by an older one.
      */
-    private SecureRandom random;
+    private final Object writeLock = new Object();
 
-    /** The token file to persist the secure tokens */
-    private File tokenFile;
+    /**
+     * The latency of the token file writes.
+     */
+    private final Timer writes = Saml2Metrics.REGISTRY.timer(WRITES);
 
-    /** A temporary file used to update the secure token file */
-    private File tmpTokenFile;
+    /**
+     * A secure random used for generating new tokens.
+     */
+    private final SecureRandom random;
+
+    /** The storage of the secure tokens, possibly shared with other instances */
+    private final KeyRingProvider provider;
 
     /**
      * @throws NoSuchAlgorithmException
@@ -116,30 +140,32 @@ class TokenStore {
      */
     TokenStore(final File tokenFile, final long sessionTimeout, final boolean fastSeed)
             throws NoSuchAlgorithmException, InvalidKeyException, IllegalStateException {
+        this(new FileKeyRingProvider(tokenFile), sessionTimeout,
+                (fastSeed ? EntropyStrategy.FAST_SEED : EntropyStrategy.NATIVE_NON_BLOCKING).getSecureRandom(),
+                RELOAD_INTERVAL);
+    }
 
-        if (tokenFile == null) {
-            throw new NullPointerException("tokenfile");
-        }
+    /**
+     * @param provider       the storage of the key ring
+     * @param random         the shared generator of the new keys, see {@link EntropyStrategy}
+     * @param reloadInterval the interval (in ms) of the checks for a ring stored by
+     *                       another instance sharing the same storage
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException
+     */
+    TokenStore(final KeyRingProvider provider, final long sessionTimeout, final SecureRandom random,
+               final long reloadInterval)
+            throws NoSuchAlgorithmException, InvalidKeyException, IllegalStateException {
 
-        this.random = SecureRandom.getInstance(SHA1PRNG);
+        this.random = random;
         this.ttl = sessionTimeout;
-        this.tokenFile = tokenFile;
-        this.tmpTokenFile = new File(tokenFile + ".tmp");
+        this.provider = provider;
 
         // prime the secret keys from persistence
-        loadTokens();
+        KeyRing ring = loadTokens();
 
         // warm up the crypto API
-        if (fastSeed) {
-            random.setSeed(getFastEntropy());
-        } else {
-            log.info("Seeding the secure random number generator can take "
-                    + "up to several minutes on some operating systems depending "
-                    + "upon environment factors. If this is a problem for you, "
-                    + "set the system property 'java.security.egd' to "
-                    + "'file:/dev/./urandom' or enable the Fast Seed Generator "
-                    + "in the Web Console");
-        }
         byte[] b = new byte[20];
         random.nextBytes(b);
         final SecretKey secretKey = new SecretKeySpec(b, ALGORITHM);
@@ -147,6 +173,43 @@ class TokenStore {
         m.init(secretKey);
         m.update(UTF_8.getBytes(StandardCharsets.UTF_8));
         m.doFinal();
+
+        // ensure a current key before the first token is encoded
+        keyRing.set(ring);
+        if (ring.isDue(System.currentTimeMillis())) {
+            final KeyRing next = nextRing(ring);
+            saveTokens(next);
+            if (keyRing.get().getCurrentKey() == null) {
+                log.warn("cookie keys of generation {} not stored, used by this instance only", next.getGeneration());
+                keyRing.set(next);
+            }
+            ring = keyRing.get();
+        }
+
+        rotationExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "saml2-token-rotation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rotationExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduleRotation(ring);
+        scheduleReload(reloadInterval);
+    }
+
+    /**
+     * Stops the background rotation and writes a pending key ring; the tokens are
+     * still valid for validation but the key ring is not rotated any longer.
+     */
+    void close() {
+        rotationExecutor.shutdown();
+        try {
+            if (!rotationExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("token rotation did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
     }
 
     /**
@@ -161,19 +224,19 @@ class TokenStore {
     String encode(final long expires, final String userId)
             throws IllegalStateException, UnsupportedEncodingException,
             NoSuchAlgorithmException, InvalidKeyException {
-        int token = getActiveToken();
-        SecretKey key = currentTokens[token];
-        return encode(expires, userId, token, key);
+        final KeyRing ring = keyRing.get();
+        final int token = ring.getCurrent();
+        return encode(expires, userId, token, ring.getMac(token));
     }
 
     private String encode(final long expires, final String userId,
-                          final int token, final SecretKey key) throws IllegalStateException,
-            UnsupportedEncodingException, NoSuchAlgorithmException,
+                          final int token, final Mac m) throws IllegalStateException,
             InvalidKeyException {
 
+        if (m == null) {
+            throw new InvalidKeyException("no key for token " + token);
+        }
         String cookiePayload = "" + token + expires + "@" + userId;
-        Mac m = Mac.getInstance(ALGORITHM);
-        m.init(key);
         m.update(cookiePayload.getBytes(StandardCharsets.UTF_8));
         String cookieValue = byteToHex(m.doFinal());
         return cookieValue + "@" + cookiePayload;
@@ -197,6 +260,46 @@ class TokenStore {
         return null;
     }
 
+    /**
+     * Returns the expiry time encoded in the second field of the authentication data
+     * (the digits following the single digit token number) without splitting the value.
+     *
+     * @param authData The authentication data
+     * @return the expiry time or <code>-1</code> if the input is <code>null</code> or
+     *         has not the three '@' separated parts with a numeric second part
+     */
+    static long getExpires(final String authData) {
+        if (authData != null) {
+            final int macEnd = authData.indexOf('@');
+            if (macEnd > 0) {
+                final int timeEnd = authData.indexOf('@', macEnd + 1);
+                if (timeEnd > 0 && timeEnd < authData.length() - 1) {
+                    return parseTime(authData, macEnd + 2, timeEnd);
+                }
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * @return the decimal number of the given range of the value or <code>-1</code>
+     *         if the range is empty, too long or contains other characters than digits
+     */
+    private static long parseTime(final String value, final int start, final int end) {
+        if (start >= end || end - start > MAX_TIME_DIGITS) {
+            return -1L;
+        }
+        long time = 0L;
+        for (int i = start; i < end; i++) {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1L;
+            }
+            time = time * 10L + digit;
+        }
+        return time;
+    }
+
     /**
      * Returns <code>true</code> if the <code>value</code> is a valid secure
      * token as follows:
@@ -210,28 +313,33 @@ class TokenStore {
      * </ul>
      * <p>
      * Otherwise the method returns <code>false</code>.
+     * <p>
+     * The value is parsed in place and the hash is compared with the hex digits of
+     * the first field in constant time, so a successful validation creates no garbage
+     * (as long as the user id consists of ASCII characters) and the time needed for the
+     * comparison doesn't reveal how many digits of a forged hash are correct.
      */
     boolean isValid(String value) {
-        String[] parts = split(value);
-        if (parts != null) {
+        // part 0 = token/hash
+        // part 1 = token number (1 ... 5) + system time in ms
+        // part 2 = user name
+        final int macEnd = value != null ? value.indexOf('@') : -1;
+        final int timeEnd = macEnd > 0 ? value.indexOf('@', macEnd + 1) : -1;
+        if (timeEnd > macEnd + 1 && timeEnd < value.length() - 1) {
 
             // single digit token number
-            // part 0 = token/hash
-            // part 1 = token number (1 ... 5) + system time in ms
-            // part 2 = user name
-            int tokenNumber = parts[1].charAt(0) - '0';
+            int tokenNumber = value.charAt(macEnd + 1) - '0';
             //https://stackoverflow.com/questions/4318263/java-subtract-0-from-char-to-get-an-int-why-does-this-work
-            if (tokenNumber >= 0 && tokenNumber < currentTokens.length) {
-                long cookieTime = Long.parseLong(parts[1].substring(1));
-                if (System.currentTimeMillis() < cookieTime) {
-
-                    try {
-                        SecretKey secretKey = currentTokens[tokenNumber];
-                        String hmac = encode(cookieTime, parts[2], tokenNumber,
-                                secretKey);
-                        return value.equals(hmac);
-                    } catch (ArrayIndexOutOfBoundsException | InvalidKeyException | IllegalStateException | UnsupportedEncodingException | NoSuchAlgorithmException e) {
-                        log.error(e.getMessage(), e);
+            final KeyRing ring = keyRing.get();
+            if (tokenNumber >= 0 && tokenNumber < ring.size()) {
+                long cookieTime = parseTime(value, macEnd + 2, timeEnd);
+                if (cookieTime < 0) {
+                    log.error("AuthNCookie value '{}' has invalid format", value);
+                } else if (System.currentTimeMillis() < cookieTime) {
+
+                    final Mac mac = ring.getMac(tokenNumber);
+                    if (mac != null) {
+                        return isValidHash(value, macEnd, mac);
                     }
 
                     log.error("AuthNCookie value '{}' is invalid", value);
@@ -256,118 +364,233 @@ class TokenStore {
     }
 
     /**
-     * Maintain a circular buffer to tokens, and return the current one.
-     *
-     * @return the current token.
-     */
-    synchronized int getActiveToken() {
-        if (System.currentTimeMillis() > nextUpdate
-                || currentTokens[currentToken] == null) {
-            // cycle so that during a typical ttl the tokens get completely
-            // refreshed.
-            nextUpdate = System.currentTimeMillis() + ttl
-                    / (currentTokens.length - 1);
-            byte[] b = new byte[20];
-            random.nextBytes(b);
-
-            SecretKey newToken = new SecretKeySpec(b, ALGORITHM);
-            int nextToken = currentToken + 1;
-            if (nextToken == currentTokens.length) {
-                nextToken = 0;
-            }
-            currentTokens[nextToken] = newToken;
-            currentToken = nextToken;
-            saveTokens();
+     * Hashes the payload (everything behind the first '@') of the value and compares
+     * the hash with the hex digits in front of the first '@' in constant time.
+     */
+    private boolean isValidHash(final String value, final int macEnd, final Mac mac) {
+        final Buffers buffers = BUFFERS.get();
+        final int payloadStart = macEnd + 1;
+        final int payloadLength = value.length() - payloadStart;
+        final byte[] payload = buffers.payload(payloadLength);
+        boolean ascii = true;
+        for (int i = 0; ascii && i < payloadLength; i++) {
+            final char c = value.charAt(payloadStart + i);
+            payload[i] = (byte) c;
+            ascii = c < 0x80;
+        }
+        if (ascii) {
+            mac.update(payload, 0, payloadLength);
+        } else {
+            mac.update(value.substring(payloadStart).getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] hash = buffers.hash;
+        final int hashLength = mac.getMacLength();
+        try {
+            mac.doFinal(hash, 0);
+        } catch (ShortBufferException e) {
+            log.error(e.getMessage(), e);
+            return false;
+        }
+        int diff = macEnd ^ (hashLength * 2);
+        for (int i = 0, c = 0; i < hashLength && c + 1 < macEnd; i++) {
+            final int j = hash[i] + 128;
+            diff |= TOHEX[j / 0x10] ^ value.charAt(c++);
+            diff |= TOHEX[j % 0x10] ^ value.charAt(c++);
+        }
+        if (diff != 0) {
+            log.error("AuthNCookie value '{}' is invalid", value);
         }
-        return currentToken;
+        return diff == 0;
     }
 
     /**
-     * Stores the current set of tokens to the token file
+     * @return the current snapshot of the key ring
      */
-    void saveTokens() {
-        try( FileOutputStream fout = new FileOutputStream(tmpTokenFile); DataOutputStream keyOutputStream = new DataOutputStream(fout)) {
-            File parent = tokenFile.getAbsoluteFile().getParentFile();
-            log.info("Token File {} parent {} ", tokenFile, parent);
-            if (!parent.exists()) {
-                parent.mkdirs();
-            }
-            keyOutputStream.writeInt(currentToken);
-            keyOutputStream.writeLong(nextUpdate);
-            for (int i = 0; i < currentTokens.length; i++) {
-                if (currentTokens[i] == null) {
-                    keyOutputStream.writeInt(0);
-                } else {
-                    keyOutputStream.writeInt(1);
-                    byte[] b = currentTokens[i].getEncoded();
-                    keyOutputStream.writeInt(b.length);
-                    keyOutputStream.write(b);
-                }
+    KeyRing getKeyRing() {
+        return keyRing.get();
+    }
+
+    /**
+     * Maintain a circular buffer of tokens: creates the successor of the latest
+     * ring with a new current token and schedules its write; the new ring
+     * replaces the current snapshot once it is stored, so a ring rotated
+     * concurrently by another instance never replaces a ring already used to
+     * encode tokens. Called by the background rotation, the request threads are
+     * never blocked by a rotation or its write.
+     */
+    void rotate() {
+        synchronized (writeLock) {
+            final KeyRing pending = pendingWrite.get();
+            scheduleWrite(nextRing(pending != null ? pending : keyRing.get()));
+        }
+    }
+
+    /**
+     * Writes the latest ring in the background after a short delay; a burst of
+     * rotations results in one write of the last ring of the burst.
+     */
+    private void scheduleWrite(final KeyRing ring) {
+        if (pendingWrite.getAndSet(ring) == null) {
+            try {
+                rotationExecutor.schedule(this::flush, WRITE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.debug("token rotation stopped, ring is written on close");
             }
-            boolean renameWorked = tmpTokenFile.renameTo(tokenFile);
-            if(!renameWorked){
-                log.error("renaming token file failed");
+        }
+    }
+
+    /**
+     * Stores the pending ring (if any) and makes it the current ring, returns
+     * after the write.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            final KeyRing ring = pendingWrite.getAndSet(null);
+            if (ring != null) {
+                saveTokens(ring);
             }
-        } catch (IOException e) {
-            log.error("Failed to save cookie keys {}", e.getMessage());
         }
     }
 
     /**
-     * Load the current set of tokens from the token file. If reading the tokens
-     * fails or the token file does not exist, tokens will be generated on
-     * demand.
-     */
-    private void loadTokens() {
-        if (tokenFile.isFile() && tokenFile.canRead()) {
-            DataInputStream keyInputStream = null;
-            try(FileInputStream fin = new FileInputStream(tokenFile)) {
-                keyInputStream = new DataInputStream(fin);
-                int newCurrentToken = keyInputStream.readInt();
-                long newNextUpdate = keyInputStream.readLong();
-                SecretKey[] newKeys = new SecretKey[TOKEN_BUFFER_SIZE];
-                for (int i = 0; i < newKeys.length; i++) {
-                    int isNull = keyInputStream.readInt();
-                    if (isNull == 1) {
-                        int l = keyInputStream.readInt();
-                        byte[] b = new byte[l];
-                        int readBytes = keyInputStream.read(b);
-                        if (readBytes != l){
-                            throw new IOException("could not confirm bytes read");
-                        }
-                        newKeys[i] = new SecretKeySpec(b, ALGORITHM);
+     * Creates the successor of the given ring; the tokens are cycled so that
+     * during a typical ttl the tokens get completely refreshed.
+     */
+    private KeyRing nextRing(final KeyRing ring) {
+        byte[] b = new byte[20];
+        random.nextBytes(b);
+        final SecretKey newToken = new SecretKeySpec(b, ALGORITHM);
+        return ring.rotate(newToken, System.currentTimeMillis() + ttl / (ring.size() - 1));
+    }
+
+    /**
+     * Schedules the rotation of the given ring at its next update time.
+     */
+    private void scheduleRotation(final KeyRing ring) {
+        scheduleRotation(Math.max(0L, ring.getNextUpdate() - System.currentTimeMillis()));
+    }
+
+    private void scheduleRotation(final long delay) {
+        try {
+            rotationExecutor.schedule(() -> {
+                try {
+                    // another instance sharing the token file may have rotated already
+                    reload();
+                    if (keyRing.get().isDue(System.currentTimeMillis())) {
+                        rotate();
+                        flush();
+                    }
+                    if (keyRing.get().isDue(System.currentTimeMillis())) {
+                        // neither stored nor rotated by another instance
+                        scheduleRotation(ROTATION_RETRY_DELAY);
                     } else {
-                        newKeys[i] = null;
+                        scheduleRotation(keyRing.get());
                     }
+                } catch (RuntimeException e) {
+                    log.error("Failed to rotate cookie keys {}", e.getMessage(), e);
+                    scheduleRotation(ROTATION_RETRY_DELAY);
                 }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("token rotation stopped");
+        }
+    }
 
-                // assign the tokes and schedule a next update
-                nextUpdate = newNextUpdate;
-                currentToken = newCurrentToken;
-                currentTokens = newKeys;
+    /**
+     * Polls the generation of the stored ring to pick up the rings written by
+     * other instances sharing the same storage; a rotation of another instance
+     * is picked up within the given interval.
+     */
+    private void scheduleReload(final long interval) {
+        try {
+            rotationExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    reload();
+                } catch (RuntimeException e) {
+                    log.error("Failed to reload cookie keys {}", e.getMessage(), e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("token rotation stopped");
+        }
+    }
 
-            } catch (IOException e) {
-                log.error("Failed to load cookie keys {}", e.getMessage());
-            } finally {
+    /**
+     * Replaces the current ring by the stored ring if the storage contains a
+     * newer generation. Only the generation is read as long as it is unchanged.
+     */
+    void reload() {
+        if (provider.getGeneration() > keyRing.get().getGeneration()) {
+            final KeyRing stored = provider.load(ALGORITHM, TOKEN_BUFFER_SIZE);
+            if (stored != null) {
+                adopt(stored);
+            }
+        }
+    }
 
-                if (keyInputStream != null) {
-                    try {
-                        keyInputStream.close();
-                    } catch (IOException e) {
-                        log.warn("failed to close steam {}", e.getMessage());
-                    }
-                }
+    /**
+     * Replaces the current ring by the given ring unless the current ring is newer.
+     */
+    private void adopt(final KeyRing stored) {
+        final KeyRing previous = publish(stored);
+        if (previous != null && previous != stored && previous.getGeneration() <= stored.getGeneration()) {
+            log.info("cookie keys of generation {} loaded from {}", stored.getGeneration(), provider);
+        }
+    }
+
+    /**
+     * Replaces the current ring by the given ring unless the current ring is newer.
+     *
+     * @return the ring replaced or kept
+     */
+    private KeyRing publish(final KeyRing ring) {
+        return keyRing.getAndUpdate(
+                current -> current == null || current.getGeneration() <= ring.getGeneration() ? ring : current);
+    }
+
+    /**
+     * Stores the given ring and makes it the current ring, unless the storage
+     * contains the same or a newer generation written by another instance; in
+     * that case the stored ring replaces the current ring. If the write fails
+     * the current ring is kept (or replaced by a newer stored ring).
+     */
+    void saveTokens(final KeyRing ring) {
+        final Timer.Context timer = writes.time();
+        try {
+            if (provider.store(ring)) {
+                publish(ring);
+            } else {
+                log.info("cookie keys of generation {} already stored by another instance", ring.getGeneration());
+                adoptStored();
             }
+        } catch (IOException e) {
+            log.error("Failed to save cookie keys {}", e.getMessage());
+            // the write may have failed due to a concurrent write of another instance
+            adoptStored();
+        } finally {
+            final long nanos = timer.stop();
+            log.debug("saved cookie keys in {} ms", TimeUnit.NANOSECONDS.toMillis(nanos));
         }
+    }
 
-        // if there was a failure to read the current tokens, create new ones
-        if (currentTokens == null) {
-            currentTokens = new SecretKey[TOKEN_BUFFER_SIZE];
-            nextUpdate = System.currentTimeMillis();
-            currentToken = 0;
+    private void adoptStored() {
+        final KeyRing stored = provider.load(ALGORITHM, TOKEN_BUFFER_SIZE);
+        if (stored != null) {
+            adopt(stored);
         }
     }
 
+    /**
+     * Load the current set of tokens from the storage. If reading the tokens
+     * fails or no tokens are stored, an empty ring is returned and the
+     * tokens will be generated on demand.
+     */
+    private KeyRing loadTokens() {
+        final KeyRing ring = provider.load(ALGORITHM, TOKEN_BUFFER_SIZE);
+        // if there was a failure to read the current tokens, create new ones
+        return ring != null ? ring : KeyRing.empty(TOKEN_BUFFER_SIZE);
+    }
+
     /**
      * Encode a byte array.
      *
@@ -388,61 +611,20 @@ class TokenStore {
     }
 
     /**
-     * Creates a byte array of entry from the current state of the system:
-     * <ul>
-     * <li>The current system time in milliseconds since the epoch</li>
-     * <li>The number of nanoseconds since system startup</li>
-     * <li>The name, size and last modification time of the files in the
-     * <code>java.io.tmpdir</code> folder.</li>
-     * </ul>
-     * <p>
-     * <b>NOTE</b> This method generates entropy fast but not necessarily
-     * secure enough for seeding the random number generator.
-     *
-     * @return bytes of entropy
+     * The reusable buffers of a thread validating tokens.
      */
-    private static byte[] getFastEntropy() {
-        final MessageDigest md;
+    private static final class Buffers {
 
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new InternalError("internal error: SHA-1 not available.");
-        }
+        /** large enough for the hash of all supported algorithms */
+        final byte[] hash = new byte[64];
 
-        // update with XorShifted time values
-        update(md, System.currentTimeMillis());
-        update(md, System.nanoTime());
-
-        // scan the temp file system
-        File file = new File(System.getProperty("java.io.tmpdir"));
-        File[] entries = file.listFiles();
-        if (entries != null) {
-            for (File entry : entries) {
-                md.update(entry.getName().getBytes());
-                update(md, entry.lastModified());
-                update(md, entry.length());
-            }
-        }
+        private byte[] payload = new byte[256];
 
-        return md.digest();
-    }
-
-    /**
-     * Updates the message digest with an XOR-Shifted value.
-     *
-     * @param md The MessageDigest to update
-     * @param value The original value to be XOR-Shifted first before taking the
-     *            bytes ot update the message digest
-     */
-    private static void update(final MessageDigest md, long value) {
-        value ^= (value << 21);
-        value ^= (value >>> 35);
-        value ^= (value << 4);
-
-        for (int i = 0; i < 8; i++) {
-            md.update((byte) value);
-            value >>= 8;
+        byte[] payload(final int length) {
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            return payload;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import org.apache.sling.auth.saml2.Saml2User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The queue of the user synchronizations done after the login by a pool of worker threads.
+ * <p>
+ * The synchronizations are coalesced per user: a user is queued at most once, a further login
+ * while it is queued only replaces the data to synchronize. If the queue is full the submitting
+ * thread synchronizes the user itself, so a backlog slows the logins down instead of growing
+ * without bounds.
+ */
+final class UserSyncQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserSyncQueue.class);
+
+    static final String DEPTH = Saml2Metrics.name(UserSyncQueue.class, "depth");
+    static final String LAG = Saml2Metrics.name(UserSyncQueue.class, "lag");
+    static final String COALESCED = Saml2Metrics.name(UserSyncQueue.class, "coalesced");
+    static final String CALLER_RUNS = Saml2Metrics.name(UserSyncQueue.class, "callerRuns");
+
+    /**
+     * The maximum time to wait for the queued synchronizations on {@link #close()}.
+     */
+    private static final long CLOSE_TIMEOUT = 10_000L;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * The synchronization of a user, called by the worker threads.
+     */
+    @FunctionalInterface
+    interface Synchronizer {
+
+        void synchronize(@Nonnull Saml2User samlUser);
+    }
+
+    private final Counter depth = Saml2Metrics.REGISTRY.counter(DEPTH);
+    private final Histogram lag = Saml2Metrics.REGISTRY.histogram(LAG);
+    private final Meter coalesced = Saml2Metrics.REGISTRY.meter(COALESCED);
+    private final Meter callerRuns = Saml2Metrics.REGISTRY.meter(CALLER_RUNS);
+
+    private final Synchronizer synchronizer;
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param workers      the number of worker threads
+     * @param capacity     the maximum number of queued users
+     * @param synchronizer the synchronization of a user
+     */
+    UserSyncQueue(final int workers, final int capacity, @Nonnull final Synchronizer synchronizer) {
+        this.synchronizer = synchronizer;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, capacity)), runnable -> {
+            final Thread thread = new Thread(runnable, "saml2-user-sync-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> {
+            callerRuns.mark();
+            runnable.run();
+        });
+    }
+
+    /**
+     * @return the number of users queued
+     */
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Queues the synchronization of the user; after {@link #close()} the user is synchronized
+     * by the calling thread.
+     */
+    void submit(@Nonnull final Saml2User samlUser) {
+        final String userId = samlUser.getId();
+        final Entry entry = new Entry(samlUser, System.currentTimeMillis());
+        if (pending.merge(userId, entry, (queued, next) -> new Entry(next.samlUser, queued.queued)) != entry) {
+            coalesced.mark();
+            return;
+        }
+        depth.inc();
+        if (executor.isShutdown()) {
+            process(userId);
+        } else {
+            executor.execute(() -> process(userId));
+        }
+    }
+
+    private void process(final String userId) {
+        final Entry entry = pending.remove(userId);
+        if (entry != null) {
+            depth.dec();
+            lag.update(System.currentTimeMillis() - entry.queued);
+            try {
+                synchronizer.synchronize(entry.samlUser);
+            } catch (RuntimeException ex) {
+                logger.error("synchronization of '{}' failed", userId, ex);
+            }
+        }
+    }
+
+    /**
+     * Stops the workers after the queued synchronizations are done.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("user synchronization did not stop in time, {} users not synchronized", pending.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The data of a queued user and the time it was queued first.
+     */
+    private static final class Entry {
+
+        final Saml2User samlUser;
+        final long queued;
+
+        Entry(final Saml2User samlUser, final long queued) {
+            this.samlUser = samlUser;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import com.codahale.metrics.Counter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of the session tokens successfully verified by a {@link TokenStore}.
+ * <p>
+ * An entry remembers the expiry time of the token and the key ring the token was
+ * verified with; it is used only as long as the token is not expired and the key ring
+ * has not been rotated. The cache is cleared on each rotation of the key ring.
+ * Failed verifications are not cached.
+ */
+class VerifiedTokenCache {
+
+    static final String HITS = Saml2Metrics.name(VerifiedTokenCache.class, "hits");
+    static final String MISSES = Saml2Metrics.name(VerifiedTokenCache.class, "misses");
+
+    private final TokenStore tokenStore;
+
+    /**
+     * the cache or <code>null</code> if caching is disabled
+     */
+    private final Cache<String, Entry> cache;
+
+    private final Counter hits = Saml2Metrics.REGISTRY.counter(HITS);
+    private final Counter misses = Saml2Metrics.REGISTRY.counter(MISSES);
+
+    /**
+     * the key ring of the last lookup, used to detect a rotation
+     */
+    private volatile KeyRing keyRing;
+
+    /**
+     * @param tokenStore the store verifying the tokens
+     * @param maxSize    the maximum number of cached tokens, <code>0</code> disables the cache
+     * @param ttl        the maximum time (in ms) to keep an entry, usually the session timeout
+     */
+    VerifiedTokenCache(final TokenStore tokenStore, final long maxSize, final long ttl) {
+        this.tokenStore = tokenStore;
+        this.cache = maxSize > 0 ? CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build() : null;
+    }
+
+    /**
+     * @return <code>true</code> if the token is valid, see {@link TokenStore#isValid(String)}
+     */
+    boolean isValid(final String token) {
+        if (cache == null || token == null) {
+            return tokenStore.isValid(token);
+        }
+        final KeyRing ring = tokenStore.getKeyRing();
+        if (ring != keyRing) {
+            // the ring has been rotated, the tokens of a dropped key are invalid now
+            keyRing = ring;
+            cache.invalidateAll();
+        }
+        final Entry entry = cache.getIfPresent(token);
+        if (entry != null && entry.keyRing == ring && System.currentTimeMillis() < entry.expires) {
+            hits.inc();
+            return true;
+        }
+        misses.inc();
+        if (entry != null) {
+            cache.invalidate(token);
+        }
+        final boolean valid = tokenStore.isValid(token);
+        if (valid) {
+            cache.put(token, new Entry(TokenStore.getExpires(token), ring));
+        }
+        return valid;
+    }
+
+    /**
+     * @return the number of verifications answered by the cache (of all handler instances)
+     */
+    long getHitCount() {
+        return hits.getCount();
+    }
+
+    /**
+     * @return the number of verifications delegated to the token store (of all handler instances)
+     */
+    long getMissCount() {
+        return misses.getCount();
+    }
+
+    private static final class Entry {
+
+        final long expires;
+        final KeyRing keyRing;
+
+        Entry(final long expires, final KeyRing keyRing) {
+            this.expires = expires;
+            this.keyRing = keyRing;
+        }
+    }
+}
@@ -38,9 +38,17 @@ public abstract class JksCredentials {
     /**
      * @param filePathToJKS Path to the JKS file. Usually it will be relative to the Sling instances, for example, "./sling/exampleSaml2.jks"
      * @param jksPassword Password for the JKS as a char[]
-     * @return A Keystore instance or throws an uncaught Runtime exception intending to halt the caller's processes.
+     * @return A Keystore instance, shared by the callers until the file changes (see {@link KeyStoreCache}),
+     * or throws an uncaught Runtime exception intending to halt the caller's processes.
      */
     protected static KeyStore getKeyStore(String filePathToJKS, char[] jksPassword) {
+        return KeyStoreCache.getInstance().getKeyStore(filePathToJKS, jksPassword);
+    }
+
+    /**
+     * Reads the keystore file, used by the {@link KeyStoreCache} if the file is not cached.
+     */
+    static KeyStore loadKeyStore(String filePathToJKS, char[] jksPassword) {
         // Try-with-Resources closes file input stream automatically
         try (InputStream fis = new FileInputStream(filePathToJKS)){
             KeyStore keyStore = KeyStore.getInstance("JKS");
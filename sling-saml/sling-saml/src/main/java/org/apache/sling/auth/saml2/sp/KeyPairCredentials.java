@@ -20,7 +20,6 @@
 
 package org.apache.sling.auth.saml2.sp;
 
-import org.apache.sling.auth.saml2.SAML2RuntimeException;
 import org.opensaml.security.credential.CredentialSupport;
 import org.opensaml.security.x509.BasicX509Credential;
 import java.security.*;
@@ -43,22 +42,20 @@ public class KeyPairCredentials extends JksCredentials {
      * @param jksPassword truststore password as char array
      * @param certAlias alias given to the keystore associated to this Service Provider
      * @param keysPassword password for the keystore associated to this Service Provider
-     * @return returns the SP X509 Credential
+     * @return returns the SP X509 Credential, shared by the callers until the keystore file changes
      */
     public static BasicX509Credential getCredential (
             final String jksPath,
             final char[] jksPassword,
             final String certAlias,
             final char[] keysPassword) {
-        try {
-            KeyStore keyStore = getKeyStore(jksPath, jksPassword);
-            Key key = keyStore.getKey(certAlias, keysPassword);
-            X509Certificate cert = (X509Certificate) keyStore.getCertificate(certAlias);
-            PublicKey publicKey = cert.getPublicKey();
-            KeyPair keyPair = new KeyPair(publicKey, (PrivateKey) key);
-            return CredentialSupport.getSimpleCredential(cert,keyPair.getPrivate());
-        } catch (java.security.KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException e) {
-            throw new SAML2RuntimeException(e);
-        }
+        return KeyStoreCache.getInstance().getCredential(BasicX509Credential.class,
+                jksPath, jksPassword, certAlias, keysPassword, keyStore -> {
+                    Key key = keyStore.getKey(certAlias, keysPassword);
+                    X509Certificate cert = (X509Certificate) keyStore.getCertificate(certAlias);
+                    PublicKey publicKey = cert.getPublicKey();
+                    KeyPair keyPair = new KeyPair(publicKey, (PrivateKey) key);
+                    return CredentialSupport.getSimpleCredential(cert, keyPair.getPrivate());
+                });
     }
 }
\ No newline at end of file
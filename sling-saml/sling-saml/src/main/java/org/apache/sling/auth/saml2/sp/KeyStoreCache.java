@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.sp;
+
+import org.apache.sling.auth.saml2.SAML2RuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The keystores and the credentials read from them, shared by all handler instances.
+ * <p>
+ * A keystore is loaded once per file version (path, modification time and size) and store
+ * password; each credential is decoded once per keystore version, alias and key password.
+ * The passwords are part of the keys only as salted digests, a wrong password never hits
+ * a cached entry and fails as before. The directories of the cached files are watched and
+ * the entries of a changed file are dropped immediately; the file version in the keys keeps
+ * the lookups correct even if the file system doesn't deliver change events.
+ */
+public final class KeyStoreCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyStoreCache.class);
+
+    private static final KeyStoreCache INSTANCE = new KeyStoreCache();
+
+    /**
+     * The loader of a credential from an opened keystore.
+     */
+    @FunctionalInterface
+    interface CredentialLoader<T> {
+        T load(KeyStore keyStore) throws GeneralSecurityException;
+    }
+
+    private final Map<Key, KeyStore> keyStores = new ConcurrentHashMap<>();
+    private final Map<Key, Object> credentials = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+    private final byte[] salt = new byte[16];
+    private WatchService watchService;
+    private Thread watcher;
+
+    private KeyStoreCache() {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    static KeyStoreCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Drops all cached entries and stops watching the keystore files, called on bundle stop.
+     */
+    public static void shutdown() {
+        INSTANCE.close();
+    }
+
+    /**
+     * @return the keystore of the file, loaded only if the file has changed since the last call
+     * @throws SAML2RuntimeException if the file can't be read or the password is wrong
+     */
+    KeyStore getKeyStore(final String jksPath, final char[] jksPassword) {
+        final Path path = Paths.get(jksPath).toAbsolutePath().normalize();
+        final Key key = new Key(path, version(path), null, digest(jksPassword, null));
+        KeyStore keyStore = keyStores.get(key);
+        if (keyStore == null) {
+            keyStore = JksCredentials.loadKeyStore(jksPath, jksPassword);
+            keyStores.put(key, keyStore);
+            watch(path);
+        }
+        return keyStore;
+    }
+
+    /**
+     * @param type        the kind of the credential, credentials of different kinds don't share entries
+     * @param keyPassword the password of the key or <code>null</code> if only a certificate is used
+     * @return the credential of the alias, decoded only if the keystore file has changed since
+     * the last call with the same arguments
+     * @throws SAML2RuntimeException if the keystore or the credential can't be read
+     */
+    <T> T getCredential(final Class<T> type, final String jksPath, final char[] jksPassword,
+                        final String alias, final char[] keyPassword, final CredentialLoader<T> loader) {
+        final Path path = Paths.get(jksPath).toAbsolutePath().normalize();
+        final Key key = new Key(path, version(path), type.getName() + ":" + alias,
+                digest(jksPassword, keyPassword));
+        Object credential = credentials.get(key);
+        if (credential == null) {
+            try {
+                credential = loader.load(getKeyStore(jksPath, jksPassword));
+            } catch (GeneralSecurityException e) {
+                throw new SAML2RuntimeException(e);
+            }
+            credentials.put(key, credential);
+        }
+        return type.cast(credential);
+    }
+
+    /**
+     * Drops all entries of the given keystore file.
+     */
+    void invalidate(final Path path) {
+        keyStores.keySet().removeIf(key -> key.path.equals(path));
+        credentials.keySet().removeIf(key -> key.path.equals(path));
+    }
+
+    synchronized void close() {
+        keyStores.clear();
+        credentials.clear();
+        watchedDirectories.clear();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("closing the keystore watcher failed: {}", e.toString());
+            }
+            watchService = null;
+            watcher = null;
+        }
+    }
+
+    private static String version(final Path path) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+        } catch (IOException e) {
+            throw new SAML2RuntimeException(e);
+        }
+    }
+
+    private byte[] digest(final char[] storePassword, final char[] keyPassword) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            update(digest, storePassword);
+            digest.update((byte) 0);
+            update(digest, keyPassword);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new SAML2RuntimeException(e);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final char[] password) {
+        if (password != null) {
+            final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+            digest.update(bytes);
+            Arrays.fill(bytes.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * Registers the directory of the keystore file with the watcher, starts the watcher thread
+     * with the first file.
+     */
+    private synchronized void watch(final Path path) {
+        final Path directory = path.getParent();
+        if (directory == null || watchedDirectories.containsKey(directory)) {
+            return;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                final WatchService service = watchService;
+                watcher = new Thread(() -> processEvents(service), "saml2-keystore-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            watchedDirectories.put(directory, directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE));
+        } catch (IOException | UnsupportedOperationException e) {
+            // the file version in the keys still detects the changes on the next lookup
+            logger.warn("can't watch the keystore directory '{}': {}", directory, e.toString());
+        }
+    }
+
+    private void processEvents(final WatchService service) {
+        try {
+            while (true) {
+                final WatchKey watchKey = service.take();
+                final Path directory = (Path) watchKey.watchable();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        keyStores.keySet().removeIf(key -> directory.equals(key.path.getParent()));
+                        credentials.keySet().removeIf(key -> directory.equals(key.path.getParent()));
+                    } else {
+                        final Path changed = directory.resolve((Path) event.context());
+                        logger.debug("keystore directory changed: {}", changed);
+                        invalidate(changed);
+                    }
+                }
+                if (!watchKey.reset()) {
+                    watchedDirectories.remove(directory);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed on shutdown
+        }
+    }
+
+    private static final class Key {
+
+        final Path path;
+        final String version;
+        final String alias;
+        final byte[] digest;
+
+        Key(final Path path, final String version, final String alias, final byte[] digest) {
+            this.path = path;
+            this.version = version;
+            this.alias = alias;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return path.equals(key.path) && version.equals(key.version)
+                    && Objects.equals(alias, key.alias) && MessageDigest.isEqual(digest, key.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, version, alias, Arrays.hashCode(digest));
+        }
+    }
+}
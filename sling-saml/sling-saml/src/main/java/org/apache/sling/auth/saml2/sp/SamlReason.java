@@ -33,7 +33,13 @@ public enum SamlReason {
      * The login form is requested because an existing session has timed out and
      * the credentials have to be entered again.
      */
-    TIMEOUT("Session timed out, please login again");
+    TIMEOUT("Session timed out, please login again"),
+
+    /**
+     * The SAML response posted by the identity provider was rejected because it
+     * exceeds the configured size limit.
+     */
+    RESPONSE_TOO_LARGE("The login response is too large");
 
     /**
      * The user-friendly message returned by {@link #toString()}
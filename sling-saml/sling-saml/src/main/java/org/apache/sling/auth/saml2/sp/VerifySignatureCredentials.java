@@ -21,7 +21,6 @@
 package org.apache.sling.auth.saml2.sp;
 
 
-import org.apache.sling.auth.saml2.SAML2RuntimeException;
 import org.opensaml.security.credential.Credential;
 import org.opensaml.security.x509.BasicX509Credential;
 import java.security.*;
@@ -42,19 +41,17 @@ public class VerifySignatureCredentials extends JksCredentials {
      * @param jksPath The path to the JKS holding the Certification
      * @param jksPassword Password of the Java KeyStore
      * @param certAlias The Alias of the public key credential used to create the X509
-     * @return returns the Credential
+     * @return returns the Credential, shared by the callers until the keystore file changes
      */
 
     public static Credential getCredential(
             final String jksPath,
             final char[] jksPassword,
             final String certAlias) {
-        try {
-            KeyStore keyStore = getKeyStore(jksPath, jksPassword);
-            X509Certificate cert = (X509Certificate) keyStore.getCertificate(certAlias);
-            return new BasicX509Credential(cert);
-        } catch (java.security.KeyStoreException e) {
-            throw new SAML2RuntimeException(e);
-        }
+        return KeyStoreCache.getInstance().getCredential(Credential.class,
+                jksPath, jksPassword, certAlias, null, keyStore -> {
+                    X509Certificate cert = (X509Certificate) keyStore.getCertificate(certAlias);
+                    return new BasicX509Credential(cert);
+                });
     }
 }
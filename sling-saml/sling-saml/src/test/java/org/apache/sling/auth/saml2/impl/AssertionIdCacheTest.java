@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AssertionIdCacheTest {
+
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Test
+    public void replayTest() {
+        AssertionIdCache cache = new AssertionIdCache(100);
+        long replays = Saml2Metrics.REGISTRY.meter(AssertionIdCache.REPLAYS).getCount();
+        assertTrue(cache.checkAndRecord("_a", NOW + 300_000, NOW));
+        assertTrue(cache.checkAndRecord("_b", NOW + 300_000, NOW));
+        assertFalse(cache.checkAndRecord("_a", NOW + 300_000, NOW + 1000));
+        assertEquals(replays + 1, Saml2Metrics.REGISTRY.meter(AssertionIdCache.REPLAYS).getCount());
+        assertEquals(2, cache.size());
+        // expired IDs are never accepted
+        assertFalse(cache.checkAndRecord("_c", NOW, NOW));
+    }
+
+    @Test
+    public void evictionTest() {
+        AssertionIdCache cache = new AssertionIdCache(100);
+        long expires = NOW + 300_000;
+        assertTrue(cache.checkAndRecord("_a", expires, NOW));
+        assertTrue(cache.checkAndRecord("_b", expires + 10 * AssertionIdCache.WINDOW, NOW));
+        // kept until the end of the window of its expiry
+        assertFalse(cache.checkAndRecord("_a", expires, expires - 1));
+        assertEquals(2, cache.size());
+        assertFalse(cache.checkAndRecord("_x", expires, expires + AssertionIdCache.WINDOW));
+        assertEquals(1, cache.size());
+        assertFalse(cache.checkAndRecord("_b", expires + 10 * AssertionIdCache.WINDOW, expires + AssertionIdCache.WINDOW));
+    }
+
+    @Test
+    public void resizeAndCloseTest() {
+        AssertionIdCache cache = new AssertionIdCache(100);
+        long entries = Saml2Metrics.REGISTRY.counter(AssertionIdCache.ENTRIES).getCount();
+        assertTrue(cache.checkAndRecord("_a", NOW + 300_000, NOW));
+        assertTrue(cache.checkAndRecord("_b", NOW + 900_000, NOW));
+        // the recorded IDs survive a resize
+        cache.setMaxEntries(200);
+        assertFalse(cache.checkAndRecord("_a", NOW + 300_000, NOW));
+        assertEquals(entries + 2, Saml2Metrics.REGISTRY.counter(AssertionIdCache.ENTRIES).getCount());
+        // and are no longer counted once the cache is closed
+        assertEquals(2, cache.close());
+        assertEquals(0, cache.size());
+        assertEquals(entries, Saml2Metrics.REGISTRY.counter(AssertionIdCache.ENTRIES).getCount());
+    }
+
+    @Test
+    public void growthAndOverflowTest() {
+        AssertionIdCache cache = new AssertionIdCache(20_000);
+        for (int i = 0; i < 20_000; i++) {
+            assertTrue(cache.checkAndRecord("_" + i, NOW + 300_000, NOW));
+        }
+        for (int i = 0; i < 20_000; i++) {
+            assertFalse(cache.checkAndRecord("_" + i, NOW + 300_000, NOW));
+        }
+        assertEquals(20_000, cache.size());
+        long overflows = Saml2Metrics.REGISTRY.meter(AssertionIdCache.OVERFLOWS).getCount();
+        int accepted = 0;
+        for (int i = 20_000; i < 40_000; i++) {
+            accepted += cache.checkAndRecord("_" + i, NOW + 300_000, NOW) ? 1 : 0;
+        }
+        // accepted, but not all of them recorded
+        assertEquals(20_000, accepted);
+        assertTrue(Saml2Metrics.REGISTRY.meter(AssertionIdCache.OVERFLOWS).getCount() > overflows);
+    }
+
+    @Test
+    public void concurrentUseTest() throws Exception {
+        final AssertionIdCache cache = new AssertionIdCache(1_000_000);
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 200; round++) {
+                final String id = "_" + round;
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    final Callable<Boolean> use = () -> {
+                        start.await();
+                        return cache.checkAndRecord(id, NOW + 300_000, NOW);
+                    };
+                    results.add(executor.submit(use));
+                }
+                start.countDown();
+                int accepted = 0;
+                for (Future<Boolean> result : results) {
+                    accepted += result.get() ? 1 : 0;
+                }
+                assertEquals(1, accepted);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentEvictionTest() throws Exception {
+        final AssertionIdCache cache = new AssertionIdCache(1_000_000);
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String prefix = "_" + t + "_";
+                results.add(executor.submit(() -> {
+                    start.await();
+                    // the threads drift apart, so the windows some of them record in are dropped by others
+                    for (int i = 0; i < 20_000; i++) {
+                        final long now = NOW + i * 50L;
+                        cache.checkAndRecord(prefix + i, now + 1, now);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final long later = NOW + 10_000L * AssertionIdCache.WINDOW;
+        assertTrue(cache.checkAndRecord("_last", later + 1, later));
+        assertEquals(1, cache.size());
+    }
+}
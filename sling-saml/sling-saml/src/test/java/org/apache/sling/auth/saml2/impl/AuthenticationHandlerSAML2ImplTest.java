@@ -29,6 +29,7 @@ import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.api.Action;
 import org.jmock.api.Invocation;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -36,7 +37,9 @@ import org.osgi.framework.BundleContext;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.http.HttpSession;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
@@ -44,10 +47,12 @@ import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
 
 import static org.apache.sling.auth.saml2.impl.AuthenticationHandlerSAML2Impl.TOKEN_FILENAME;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 
@@ -73,6 +78,11 @@ public class AuthenticationHandlerSAML2ImplTest {
         encodedToken = store.encode(defaultExpirationTimeMsec, userId);
     }
 
+    @After
+    public void teardown() {
+        store.close();
+    }
+
     @Test
     public void validTokenTest() throws Exception {
         assertTrue(store.isValid(encodedToken));
@@ -90,6 +100,34 @@ public class AuthenticationHandlerSAML2ImplTest {
         }
     }
 
+    @Test
+    public void tamperedTokensTest() throws Exception {
+        final int macEnd = encodedToken.indexOf('@');
+        final char last = encodedToken.charAt(macEnd - 1);
+        final String[] tampered = {
+                encodedToken.substring(0, macEnd - 1) + (last == '0' ? '1' : '0') + encodedToken.substring(macEnd),
+                encodedToken.substring(1),
+                encodedToken + "x",
+                encodedToken.substring(0, macEnd + 2) + "x" + encodedToken.substring(macEnd + 3),
+                encodedToken.substring(0, encodedToken.lastIndexOf('@') + 1),
+                null
+        };
+        for (String token : tampered) {
+            assertFalse(store.isValid(token));
+        }
+
+        final String nonAscii = store.encode(defaultExpirationTimeMsec, "us\u00e9r@example.org");
+        assertTrue(store.isValid(nonAscii));
+    }
+
+    @Test
+    public void expiresTest() throws Exception {
+        assertEquals(defaultExpirationTimeMsec, TokenStore.getExpires(encodedToken));
+        assertEquals(-1L, TokenStore.getExpires(null));
+        assertEquals(-1L, TokenStore.getExpires("nothing"));
+        assertEquals(-1L, TokenStore.getExpires("0@bad@token"));
+    }
+
     @Test
     public void expiredTokenTest() throws Exception {
         final String expired = store.encode(1, userId);
@@ -106,6 +144,163 @@ public class AuthenticationHandlerSAML2ImplTest {
         assertFalse(emptyStore.isValid(encodedToken));
     }
 
+    @Test
+    public void rotationTest() throws Exception {
+        // the rotated ring is used once it is stored
+        final long generation = store.getKeyRing().getGeneration();
+        store.rotate();
+        assertEquals(generation, store.getKeyRing().getGeneration());
+        store.flush();
+        assertEquals(generation + 1, store.getKeyRing().getGeneration());
+        final String rotated = store.encode(defaultExpirationTimeMsec, userId);
+        assertNotEquals(encodedToken.charAt(encodedToken.indexOf('@') + 1), rotated.charAt(rotated.indexOf('@') + 1));
+        assertTrue(store.isValid(encodedToken));
+        assertTrue(store.isValid(rotated));
+
+        final TokenStore newStore = new TokenStore(tokenFile, sessionTimeoutMsec, defaultFastSeed);
+        assertTrue(newStore.isValid(encodedToken));
+        assertTrue(newStore.isValid(rotated));
+        newStore.close();
+    }
+
+    @Test
+    public void coalescedWriteTest() throws Exception {
+        final long writes = Saml2Metrics.REGISTRY.timer(TokenStore.WRITES).getCount();
+        store.rotate();
+        store.rotate();
+        store.rotate();
+        final String rotated = store.encode(defaultExpirationTimeMsec, userId);
+        store.close();
+        assertEquals(writes + 1, Saml2Metrics.REGISTRY.timer(TokenStore.WRITES).getCount());
+
+        final TokenStore newStore = new TokenStore(tokenFile, sessionTimeoutMsec, defaultFastSeed);
+        assertTrue(newStore.isValid(encodedToken));
+        assertTrue(newStore.isValid(rotated));
+        assertFalse(new File(tokenFile + ".tmp").exists());
+        newStore.close();
+    }
+
+    @Test
+    public void verifiedTokenCacheTest() throws Exception {
+        final VerifiedTokenCache cache = new VerifiedTokenCache(store, 10, sessionTimeoutMsec);
+        final long hits = cache.getHitCount();
+        final long misses = cache.getMissCount();
+        assertTrue(cache.isValid(encodedToken));
+        assertTrue(cache.isValid(encodedToken));
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(misses + 1, cache.getMissCount());
+
+        assertFalse(cache.isValid(encodedToken + "x"));
+        assertFalse(cache.isValid(encodedToken + "x"));
+        assertFalse(cache.isValid(null));
+
+        final String expired = store.encode(System.currentTimeMillis() + 50, userId);
+        assertTrue(cache.isValid(expired));
+        Thread.sleep(100);
+        assertFalse(cache.isValid(expired));
+
+        // the key of the token is dropped after a full round of rotations
+        for (int i = 0; i < store.getKeyRing().size(); i++) {
+            store.rotate();
+        }
+        store.flush();
+        assertFalse(cache.isValid(encodedToken));
+
+        final VerifiedTokenCache disabled = new VerifiedTokenCache(store, 0, sessionTimeoutMsec);
+        final String token = store.encode(defaultExpirationTimeMsec, userId);
+        assertTrue(disabled.isValid(token));
+        assertFalse(disabled.isValid(encodedToken));
+    }
+
+    @Test
+    public void legacyTokenFileTest() throws Exception {
+        final File legacyFile = additionalTokenFile();
+        final byte[] key = new byte[20];
+        key[0] = 42;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(legacyFile))) {
+            out.writeInt(0);
+            out.writeLong(System.currentTimeMillis() + sessionTimeoutMsec);
+            out.writeInt(1);
+            out.writeInt(key.length);
+            out.write(key);
+            for (int i = 1; i < 5; i++) {
+                out.writeInt(0);
+            }
+        }
+        final TokenStore legacyStore = new TokenStore(legacyFile, sessionTimeoutMsec, defaultFastSeed);
+        assertArrayEquals(key, legacyStore.getKeyRing().getKey(0).getEncoded());
+        assertEquals(0L, legacyStore.getKeyRing().getGeneration());
+        final String token = legacyStore.encode(defaultExpirationTimeMsec, userId);
+
+        // the next write converts the file into the current format
+        legacyStore.rotate();
+        legacyStore.close();
+        final TokenStore newStore = new TokenStore(legacyFile, sessionTimeoutMsec, defaultFastSeed);
+        assertEquals(1L, newStore.getKeyRing().getGeneration());
+        assertTrue(newStore.isValid(token));
+        newStore.close();
+    }
+
+    @Test
+    public void sharedTokenFileTest() throws Exception {
+        final TokenStore other = new TokenStore(tokenFile, sessionTimeoutMsec, defaultFastSeed);
+        assertTrue(other.isValid(encodedToken));
+
+        // a rotation of one store is picked up by the other one
+        store.rotate();
+        store.flush();
+        final String rotated = store.encode(defaultExpirationTimeMsec, userId);
+        assertFalse(other.isValid(rotated));
+        other.reload();
+        assertTrue(other.isValid(rotated));
+        assertEquals(store.getKeyRing().getGeneration(), other.getKeyRing().getGeneration());
+
+        // concurrent rotations: the ring written first wins
+        store.rotate();
+        other.rotate();
+        store.flush();
+        other.flush();
+        assertArrayEquals(store.getKeyRing().getCurrentKey().getEncoded(),
+                other.getKeyRing().getCurrentKey().getEncoded());
+        final String winner = store.encode(defaultExpirationTimeMsec, userId);
+        assertTrue(other.isValid(winner));
+        other.close();
+    }
+
+    @Test
+    public void entropyStrategyTest() {
+        assertEquals(EntropyStrategy.DRBG, EntropyStrategy.fromConfig("DRBG"));
+        assertEquals(EntropyStrategy.FAST_SEED, EntropyStrategy.fromConfig("SHA1PRNG"));
+        assertEquals(EntropyStrategy.FAST_SEED, EntropyStrategy.fromConfig("fast_seed"));
+        assertEquals(EntropyStrategy.NATIVE_NON_BLOCKING, EntropyStrategy.fromConfig(null));
+        for (EntropyStrategy strategy : EntropyStrategy.values()) {
+            assertNotNull(strategy.getSecureRandom());
+            assertSame(strategy.getSecureRandom(), strategy.getSecureRandom());
+        }
+    }
+
+    @Test
+    public void contextClassLoaderScopeTest() {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader original = thread.getContextClassLoader();
+        final ClassLoader other = new ClassLoader(null) {
+        };
+        try {
+            thread.setContextClassLoader(other);
+            try (ContextClassLoaderScope scope = ContextClassLoaderScope.enter()) {
+                assertSame(ContextClassLoaderScope.BUNDLE_CLASS_LOADER, thread.getContextClassLoader());
+                try (ContextClassLoaderScope nested = ContextClassLoaderScope.enter()) {
+                    assertSame(ContextClassLoaderScope.BUNDLE_CLASS_LOADER, thread.getContextClassLoader());
+                }
+                assertSame(ContextClassLoaderScope.BUNDLE_CLASS_LOADER, thread.getContextClassLoader());
+            }
+            // the pooled thread is left as it was
+            assertSame(other, thread.getContextClassLoader());
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
     @Test
     public void encodingPartsTest() throws Exception {
 
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates a cluster of nodes sharing the token keys: several {@link TokenStore}
+ * instances in one JVM using the same {@link KeyRingProvider}.
+ */
+public class KeyRingProviderTest {
+
+    private static final long SESSION_TIMEOUT = 60 * 1000L;
+    private static final long RELOAD_INTERVAL = 50L;
+    private static final int NODES = 4;
+
+    private final List<TokenStore> nodes = new ArrayList<>();
+
+    @After
+    public void teardown() {
+        for (TokenStore node : nodes) {
+            node.close();
+        }
+    }
+
+    @Test
+    public void sharedFileTest() throws Exception {
+        final File keyFile = File.createTempFile(getClass().getName(), "keyring");
+        keyFile.delete();
+        simulateCluster(() -> new FileKeyRingProvider(keyFile));
+    }
+
+    @Test
+    public void repositoryTest() throws Exception {
+        final MockResourceResolverFactory resolverFactory = new MockResourceResolverFactory();
+        simulateCluster(() -> new ResourceKeyRingProvider(resolverFactory, "/var/saml2/keyring"));
+    }
+
+    @Test
+    public void repositoryGenerationTest() throws Exception {
+        final ResourceKeyRingProvider provider =
+                new ResourceKeyRingProvider(new MockResourceResolverFactory(), "/var/saml2/keyring");
+        assertEquals(-1L, provider.getGeneration());
+        final TokenStore node = new TokenStore(provider, SESSION_TIMEOUT,
+                EntropyStrategy.FAST_SEED.getSecureRandom(), RELOAD_INTERVAL);
+        nodes.add(node);
+        final KeyRing ring = node.getKeyRing();
+        assertEquals(ring.getGeneration(), provider.getGeneration());
+        assertFalse(provider.store(ring));
+        final KeyRing stored = provider.load(TokenStore.ALGORITHM, TokenStore.TOKEN_BUFFER_SIZE);
+        assertEquals(ring.getGeneration(), stored.getGeneration());
+        assertEquals(ring.getCurrent(), stored.getCurrent());
+    }
+
+    private void simulateCluster(final ProviderFactory factory) throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(new TokenStore(factory.create(), SESSION_TIMEOUT,
+                EntropyStrategy.FAST_SEED.getSecureRandom(), RELOAD_INTERVAL));
+        }
+        final Random random = new Random(42);
+        final List<String> tokens = new ArrayList<>();
+        final long expires = System.currentTimeMillis() + SESSION_TIMEOUT;
+        for (int round = 0; round < 3; round++) {
+            // each node issues a token which is accepted by all other nodes
+            for (int i = 0; i < NODES; i++) {
+                tokens.add(nodes.get(i).encode(expires, "user-" + round + "-" + i));
+            }
+            assertAllValid(tokens);
+
+            // a rotation on a random node is picked up by all nodes within the reload interval
+            final TokenStore rotating = nodes.get(random.nextInt(NODES));
+            rotating.rotate();
+            rotating.flush();
+            final long generation = rotating.getKeyRing().getGeneration();
+            awaitGeneration(generation);
+            tokens.add(rotating.encode(expires, "rotated-" + round));
+            assertAllValid(tokens);
+        }
+
+        // concurrent rotations of all nodes end up with one ring shared by all nodes; the
+        // tokens issued while the rotations are written and right after them stay valid
+        for (TokenStore node : nodes) {
+            node.rotate();
+        }
+        for (int i = 0; i < NODES; i++) {
+            tokens.add(nodes.get(i).encode(expires, "rotating-" + i));
+        }
+        for (int i = 0; i < NODES; i++) {
+            nodes.get(i).flush();
+            tokens.add(nodes.get(i).encode(expires, "concurrent-" + i));
+        }
+        awaitGeneration(nodes.get(0).getKeyRing().getGeneration());
+        for (int i = 0; i < NODES; i++) {
+            tokens.add(nodes.get(i).encode(expires, "rotated-" + i));
+        }
+        assertAllValid(tokens);
+    }
+
+    private void awaitGeneration(final long generation) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 20 * RELOAD_INTERVAL;
+        for (TokenStore node : nodes) {
+            while (node.getKeyRing().getGeneration() < generation && System.currentTimeMillis() < timeout) {
+                Thread.sleep(RELOAD_INTERVAL / 5);
+            }
+            assertEquals(generation, node.getKeyRing().getGeneration());
+        }
+    }
+
+    private void assertAllValid(final List<String> tokens) {
+        for (TokenStore node : nodes) {
+            for (String token : tokens) {
+                assertTrue(token, node.isValid(token));
+            }
+        }
+    }
+
+    private interface ProviderFactory {
+        KeyRingProvider create();
+    }
+}
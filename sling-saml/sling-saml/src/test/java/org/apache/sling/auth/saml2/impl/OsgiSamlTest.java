@@ -21,8 +21,14 @@
 package org.apache.sling.auth.saml2.impl;
 
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.auth.saml2.AssertionReplayCache;
 import org.apache.sling.auth.saml2.Helpers;
 import org.apache.sling.auth.saml2.SAML2RuntimeException;
 import org.apache.sling.auth.saml2.Saml2User;
@@ -31,12 +37,15 @@ import org.apache.sling.auth.saml2.sp.KeyPairCredentials;
 import org.apache.sling.auth.saml2.sp.VerifySignatureCredentials;
 import org.apache.sling.testing.mock.osgi.MockOsgi;
 import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
 import org.bouncycastle.cert.CertIOException;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.xml.XMLObjectBuilder;
@@ -57,22 +66,56 @@ import org.opensaml.saml.saml2.metadata.Endpoint;
 import org.opensaml.security.credential.Credential;
 import org.opensaml.security.x509.BasicX509Credential;
 import org.osgi.framework.BundleContext;
+import org.w3c.dom.Element;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
 import java.security.cert.CertificateException;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import static org.apache.sling.auth.core.spi.AuthenticationHandler.REQUEST_LOGIN_PARAMETER;
 import static org.apache.sling.auth.saml2.Activator.initializeOpenSaml;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
@@ -179,6 +222,312 @@ public class OsgiSamlTest {
         assertion3.getAttributeStatements().add(anyAttrStmt);
     }
 
+    @Test
+    public void test_attribute_mapping(){
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("saml2userIDAttr", "uid");
+        props.put("saml2groupMembershipAttr", "groups");
+        props.put("syncGroups", new String[]{"g1=sling-g1", "g2=sling-g2", "g3"});
+        props.put("syncAttrs", new String[]{"mail=./profile/email", "uid=./profile/uid"});
+        Saml2UserMgtService mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+
+        Assertion assertion = Helpers.buildSAMLObject(Assertion.class);
+        AttributeStatement groupStatement = Helpers.buildSAMLObject(AttributeStatement.class);
+        String[] groups = new String[200];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = "other" + i;
+        }
+        groups[17] = "g1";
+        groups[123] = "g3";
+        groupStatement.getAttributes().add(buildAttribute("groups", groups));
+        assertion.getAttributeStatements().add(groupStatement);
+        // the user attributes are sent in a second statement
+        AttributeStatement userStatement = Helpers.buildSAMLObject(AttributeStatement.class);
+        userStatement.getAttributes().add(buildAttribute("uid", "jdoe"));
+        userStatement.getAttributes().add(buildAttribute("mail", "jdoe@example.org"));
+        userStatement.getAttributes().add(buildAttribute("ignored", "x"));
+        assertion.getAttributeStatements().add(userStatement);
+
+        Saml2User samlUser = new Saml2User();
+        mgtService.applySaml2Attributes(assertion, samlUser);
+        assertEquals("jdoe", samlUser.getId());
+        assertEquals(new HashSet<>(Arrays.asList("sling-g1", "g3")), samlUser.getGroupMembership());
+        assertEquals(2, samlUser.getUserProperties().size());
+        assertEquals("jdoe@example.org", samlUser.getUserProperties().get("./profile/email"));
+        assertEquals("jdoe", samlUser.getUserProperties().get("./profile/uid"));
+    }
+
+    @Test
+    public void test_single_commit_sync() throws Exception {
+        ResourceResolverFactory factory = osgiContext.getService(ResourceResolverFactory.class);
+        ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        UserManager userManager = Mockito.mock(UserManager.class);
+        User user = Mockito.mock(User.class);
+        when(factory.getServiceResourceResolver(Mockito.any())).thenReturn(resolver);
+        when(resolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.getUserManager()).thenReturn(userManager);
+        when(session.getValueFactory()).thenReturn(Mockito.mock(ValueFactory.class));
+        when(session.hasPendingChanges()).thenReturn(true);
+        when(userManager.getAuthorizable("jdoe")).thenReturn(user);
+        when(user.declaredMemberOf()).thenReturn(Collections.emptyIterator());
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("syncRetryBackoff", 50);
+        Saml2UserMgtServiceImpl mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+
+        // the first commit fails because of a concurrent modification, the user's lock is free
+        // while the retry is delayed
+        CountDownLatch locked = new CountDownLatch(1);
+        AtomicBoolean lockedInBackoff = new AtomicBoolean();
+        Mockito.doAnswer(invocation -> {
+            Thread other = new Thread(() -> {
+                Lock lock = mgtService.getUserLock("jdoe");
+                try {
+                    if (lock.tryLock(5, TimeUnit.SECONDS)) {
+                        locked.countDown();
+                        lock.unlock();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            other.start();
+            throw new InvalidItemStateException("conflict");
+        }).doAnswer(invocation -> {
+            lockedInBackoff.set(locked.getCount() == 0);
+            return null;
+        }).when(session).save();
+        Saml2User samlUser = new Saml2User("jdoe");
+        samlUser.addUserProperty("./profile/email", "jdoe@example.org");
+        long retries = Saml2Metrics.REGISTRY.meter(Saml2UserMgtServiceImpl.RETRIES).getCount();
+        long logins = Saml2Metrics.REGISTRY.histogram(Saml2UserMgtServiceImpl.COMMITS).getCount();
+        assertSame(user, mgtService.performUserSynchronization(samlUser));
+        Mockito.verify(session, Mockito.times(2)).save();
+        Mockito.verify(session).refresh(false);
+        Mockito.verify(user, Mockito.times(2)).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_LAST_LOGIN), Mockito.<Value>any());
+        assertEquals(retries + 1, Saml2Metrics.REGISTRY.meter(Saml2UserMgtServiceImpl.RETRIES).getCount());
+        assertEquals(logins + 1, Saml2Metrics.REGISTRY.histogram(Saml2UserMgtServiceImpl.COMMITS).getCount());
+        assertTrue(lockedInBackoff.get());
+
+        // each step saved separately
+        props.put("syncSingleCommit", false);
+        Saml2UserMgtService stepwiseService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        Mockito.doNothing().when(session).save();
+        Mockito.clearInvocations(session);
+        assertSame(user, stepwiseService.performUserSynchronization(samlUser));
+        Mockito.verify(session, Mockito.times(5)).save();
+    }
+
+    @Test
+    public void test_group_membership_diff() throws Exception {
+        JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        UserManager userManager = Mockito.mock(UserManager.class);
+        User user = Mockito.mock(User.class);
+        Group g1 = mockGroup("g1");
+        Group g2 = mockGroup("g2");
+        Group g3 = mockGroup("g3");
+        Group defaultGroup = mockGroup("everyone");
+        when(session.getUserManager()).thenReturn(userManager);
+        when(userManager.getAuthorizable("g1")).thenReturn(g1);
+        when(userManager.getAuthorizable("g2")).thenReturn(g2);
+        when(userManager.getAuthorizable("g3")).thenReturn(g3);
+        when(userManager.getAuthorizable("everyone")).thenReturn(defaultGroup);
+        when(user.declaredMemberOf()).thenReturn(Arrays.asList(g1, g3, defaultGroup).iterator());
+
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("syncGroups", new String[]{"idp1=g1", "idp2=g2", "idp3=g3"});
+        props.put("defaultGroups", new String[]{"everyone", "missing", ""});
+        Saml2UserMgtServiceImpl mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        Saml2User samlUser = new Saml2User("jdoe");
+        samlUser.addGroupMembership("g2");
+        samlUser.addGroupMembership("g3");
+
+        Set<String> declaredGroups = mgtService.getDeclaredGroups(user);
+        assertEquals(new HashSet<>(Arrays.asList("g1", "g3", "everyone")), declaredGroups);
+        mgtService.updateGroupMembership(session, samlUser, user, declaredGroups);
+        mgtService.updateGroupMembership(session, Saml2UserMgtServiceImpl.buildIdSet(new String[]{"everyone", "missing", ""}), user, declaredGroups);
+        Mockito.verify(g1).removeMember(user);
+        Mockito.verify(g2).addMember(user);
+        Mockito.verify(g3, Mockito.never()).addMember(user);
+        Mockito.verify(defaultGroup, Mockito.never()).addMember(user);
+        // the unchanged memberships are not looked up
+        Mockito.verify(userManager, Mockito.never()).getAuthorizable("g3");
+        Mockito.verify(userManager, Mockito.never()).getAuthorizable("everyone");
+        Mockito.verify(userManager).getAuthorizable("missing");
+        Mockito.verify(userManager, Mockito.never()).getAuthorizable("");
+        assertEquals(new HashSet<>(Arrays.asList("g2", "g3", "everyone")), declaredGroups);
+    }
+
+    @Test
+    public void test_skip_unchanged_writes() throws Exception {
+        JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        ValueFactory valueFactory = Mockito.mock(ValueFactory.class);
+        User user = Mockito.mock(User.class);
+        when(session.getValueFactory()).thenReturn(valueFactory);
+        when(user.getID()).thenReturn("jdoe");
+        Value email = Mockito.mock(Value.class);
+        when(email.getString()).thenReturn("jdoe@example.org");
+        when(user.getProperty("./profile/email")).thenReturn(new Value[]{email});
+        Calendar lastLogin = Calendar.getInstance();
+        lastLogin.add(Calendar.MINUTE, -10);
+        Value lastLoginValue = Mockito.mock(Value.class);
+        when(lastLoginValue.getDate()).thenReturn(lastLogin);
+        when(user.getProperty(Saml2UserMgtServiceImpl.PN_LAST_LOGIN)).thenReturn(new Value[]{lastLoginValue});
+
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("lastLoginGranularity", 3600);
+        Saml2UserMgtServiceImpl mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        Saml2User samlUser = new Saml2User("jdoe");
+        samlUser.addUserProperty("./profile/email", "jdoe@example.org");
+        samlUser.addUserProperty("./profile/familyName", "Doe");
+        long skipped = Saml2Metrics.REGISTRY.meter(Saml2UserMgtServiceImpl.SKIPPED_WRITES).getCount();
+        mgtService.updateUserProperties(session, samlUser, user);
+        mgtService.updateLastLogin(session, user);
+        mgtService.updateLastLogin(session, user);
+        Mockito.verify(user).setProperty(Mockito.eq("./profile/familyName"), Mockito.<Value>any());
+        Mockito.verify(user, Mockito.never()).setProperty(Mockito.eq("./profile/email"), Mockito.<Value>any());
+        Mockito.verify(user, Mockito.never()).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_LAST_LOGIN), Mockito.<Value>any());
+        // the stored time is read once and then kept in memory
+        Mockito.verify(user).getProperty(Saml2UserMgtServiceImpl.PN_LAST_LOGIN);
+        assertEquals(skipped + 3, Saml2Metrics.REGISTRY.meter(Saml2UserMgtServiceImpl.SKIPPED_WRITES).getCount());
+
+        // the stored time is older than the granularity
+        lastLogin.add(Calendar.HOUR, -1);
+        mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        mgtService.updateLastLogin(session, user);
+        Mockito.verify(user).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_LAST_LOGIN), Mockito.<Value>any());
+    }
+
+    @Test
+    public void test_sync_fingerprint() throws Exception {
+        ResourceResolverFactory factory = osgiContext.getService(ResourceResolverFactory.class);
+        ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        UserManager userManager = Mockito.mock(UserManager.class);
+        ValueFactory valueFactory = Mockito.mock(ValueFactory.class);
+        User user = Mockito.mock(User.class);
+        when(factory.getServiceResourceResolver(Mockito.any())).thenReturn(resolver);
+        when(resolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.getUserManager()).thenReturn(userManager);
+        when(session.getValueFactory()).thenReturn(valueFactory);
+        when(userManager.getAuthorizable("jdoe")).thenReturn(user);
+        when(user.declaredMemberOf()).thenReturn(Collections.emptyIterator());
+        Workspace workspace = Mockito.mock(Workspace.class);
+        ObservationManager observationManager = Mockito.mock(ObservationManager.class);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(workspace.getObservationManager()).thenReturn(observationManager);
+
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("syncGroups", new String[]{"idp1=g1"});
+        props.put("syncFingerprint", true);
+        Saml2UserMgtServiceImpl mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        Saml2User samlUser = new Saml2User("jdoe");
+        samlUser.addGroupMembership("g1");
+        samlUser.addGroupMembership("g2");
+        samlUser.addUserProperty("./profile/email", "jdoe@example.org");
+        String fingerprint = mgtService.fingerprint(samlUser);
+
+        // the same data in another order has the same fingerprint, other data another one
+        Saml2User sameUser = new Saml2User("jdoe");
+        sameUser.addUserProperty("./profile/email", "jdoe@example.org");
+        sameUser.addGroupMembership("g2");
+        sameUser.addGroupMembership("g1");
+        assertEquals(fingerprint, mgtService.fingerprint(sameUser));
+        sameUser.addUserProperty("./profile/email", "john.doe@example.org");
+        assertNotEquals(fingerprint, mgtService.fingerprint(sameUser));
+
+        // not stored while a group is missing, so that the group is applied once it exists
+        assertSame(user, mgtService.performUserSynchronization(samlUser));
+        Mockito.verify(user, Mockito.never()).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_SYNC_FINGERPRINT), Mockito.<Value>any());
+        Group g1 = mockGroup("g1");
+        when(g1.getPath()).thenReturn("/home/groups/g1");
+        when(userManager.getAuthorizable("g1")).thenReturn(g1);
+        when(userManager.getAuthorizableByPath("/home/groups/g1")).thenReturn(g1);
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        Mockito.verify(observationManager).addEventListener(listener.capture(), Mockito.anyInt(), Mockito.anyString(),
+                Mockito.anyBoolean(), Mockito.any(), Mockito.any(), Mockito.anyBoolean());
+        Event event = Mockito.mock(Event.class);
+        when(event.getType()).thenReturn(Event.NODE_ADDED);
+        when(event.getPath()).thenReturn("/home/groups/g1");
+        EventIterator events = Mockito.mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        listener.getValue().onEvent(events);
+
+        // the first sync with all groups found stores the fingerprint
+        assertSame(user, mgtService.performUserSynchronization(samlUser));
+        Mockito.verify(g1).addMember(user);
+        Mockito.verify(valueFactory).createValue(fingerprint);
+        Mockito.verify(user).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_SYNC_FINGERPRINT), Mockito.<Value>any());
+
+        // with the fingerprint stored groups and properties are skipped
+        Value stored = Mockito.mock(Value.class);
+        when(stored.getString()).thenReturn(fingerprint);
+        when(user.getProperty(Saml2UserMgtServiceImpl.PN_SYNC_FINGERPRINT)).thenReturn(new Value[]{stored});
+        Mockito.clearInvocations(user);
+        long unchanged = Saml2Metrics.REGISTRY.meter(Saml2UserMgtServiceImpl.UNCHANGED).getCount();
+        assertSame(user, mgtService.performUserSynchronization(samlUser));
+        Mockito.verify(user, Mockito.never()).declaredMemberOf();
+        Mockito.verify(user, Mockito.never()).setProperty(Mockito.eq("./profile/email"), Mockito.<Value>any());
+        Mockito.verify(user, Mockito.never()).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_SYNC_FINGERPRINT), Mockito.<Value>any());
+        Mockito.verify(user).setProperty(Mockito.eq(Saml2UserMgtServiceImpl.PN_LAST_LOGIN), Mockito.<Value>any());
+        assertEquals(unchanged + 1, Saml2Metrics.REGISTRY.meter(Saml2UserMgtServiceImpl.UNCHANGED).getCount());
+
+        // a changed configuration invalidates the fingerprint
+        props.put("defaultGroups", new String[]{"everyone"});
+        mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        assertNotEquals(fingerprint, mgtService.fingerprint(samlUser));
+    }
+
+    @Test
+    public void test_async_sync() throws Exception {
+        ResourceResolverFactory factory = osgiContext.getService(ResourceResolverFactory.class);
+        ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        UserManager userManager = Mockito.mock(UserManager.class);
+        User user = Mockito.mock(User.class);
+        when(factory.getServiceResourceResolver(Mockito.any())).thenReturn(resolver);
+        when(resolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.getUserManager()).thenReturn(userManager);
+        when(session.getValueFactory()).thenReturn(Mockito.mock(ValueFactory.class));
+        when(session.hasPendingChanges()).thenReturn(true);
+        when(userManager.getAuthorizable("jdoe")).thenReturn(user);
+        when(user.declaredMemberOf()).thenReturn(Collections.emptyIterator());
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> release.await(10, TimeUnit.SECONDS)).when(session).save();
+
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("syncWorkers", 1);
+        Saml2UserMgtService mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        Saml2User samlUser = new Saml2User("jdoe");
+        samlUser.addUserProperty("./profile/email", "jdoe@example.org");
+        // the known user is returned before its synchronization is done
+        assertSame(user, mgtService.performUserSynchronization(samlUser));
+        Mockito.verify(user, Mockito.timeout(10_000)).setProperty(Mockito.eq("./profile/email"), Mockito.<Value>any());
+        Mockito.verify(session, Mockito.timeout(10_000)).save();
+        release.countDown();
+        MockOsgi.deactivate(mgtService, osgiContext.bundleContext());
+        Mockito.verify(session).save();
+    }
+
+    private Group mockGroup(String id) throws Exception {
+        Group group = Mockito.mock(Group.class);
+        when(group.getID()).thenReturn(id);
+        when(group.isGroup()).thenReturn(true);
+        return group;
+    }
+
+    private Attribute buildAttribute(String name, String... values) {
+        Attribute attribute = Helpers.buildSAMLObject(Attribute.class);
+        attribute.setName(name);
+        for (String value : values) {
+            XSString attributeValue = valueBuilder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            attributeValue.setValue(value);
+            attribute.getAttributeValues().add(attributeValue);
+        }
+        return attribute;
+    }
+
     @Test
     public void test_authn_request(){
         AuthnRequest authnRequest = samlHandler.buildAuthnRequest();
@@ -190,6 +539,77 @@ public class OsgiSamlTest {
         assertTrue(authnRequest.getID().length()==33);
     }
 
+    @Test
+    public void test_authn_request_template() throws Exception {
+        assertNotNull(samlHandler.getRequestTemplate());
+        assertFalse(samlHandler.getRequestTemplate().isSigned());
+        AuthnRequestTemplate template = saml2handlerJKS.getRequestTemplate();
+        assertNotNull(template);
+        assertTrue(template.isSigned());
+
+        // the template produces the XML OpenSAML marshalls for the same values
+        AuthnRequest authnRequest = saml2handlerJKS.buildAuthnRequest();
+        authnRequest.setIssueInstant(Instant.ofEpochMilli(System.currentTimeMillis()));
+        String expected = SerializeSupport.nodeToString(XMLObjectProviderRegistrySupport.getMarshallerFactory()
+                .getMarshaller(authnRequest).marshall(authnRequest));
+        assertEquals(expected, template.toXml(authnRequest.getID(), authnRequest.getIssueInstant()));
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        HttpSession session = Mockito.mock(HttpSession.class);
+        when(request.getSession()).thenReturn(session);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        saml2handlerJKS.redirectUserWithTemplate(request, response, template);
+        ArgumentCaptor<String> url = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(response).sendRedirect(url.capture());
+        ArgumentCaptor<String> requestID = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(session).setAttribute(Mockito.eq(AbstractSamlHandler.SAML2_REQUEST_ID), requestID.capture());
+
+        assertTrue(url.getValue().startsWith(saml2handlerJKS.getSaml2IDPDestination() + "?SAMLRequest="));
+        String query = url.getValue().substring(url.getValue().indexOf('?') + 1);
+        Map<String, String> params = new HashMap<>();
+        for (String param : query.split("&")) {
+            String[] pair = param.split("=", 2);
+            params.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+        }
+        assertEquals(AuthnRequestTemplate.SIGNATURE_ALGORITHM, params.get("SigAlg"));
+        assertNotNull(params.get("RelayState"));
+        InflaterInputStream inflater = new InflaterInputStream(
+                new ByteArrayInputStream(Base64.getDecoder().decode(params.get("SAMLRequest"))), new Inflater(true));
+        Element element = XMLObjectProviderRegistrySupport.getParserPool().parse(inflater).getDocumentElement();
+        AuthnRequest redirected = (AuthnRequest) XMLObjectProviderRegistrySupport.getUnmarshallerFactory()
+                .getUnmarshaller(element).unmarshall(element);
+        assertEquals(requestID.getValue(), redirected.getID());
+        assertEquals(saml2handlerJKS.getACSURL(), redirected.getAssertionConsumerServiceURL());
+        assertEquals(saml2handlerJKS.getEntityID(), redirected.getIssuer().getValue());
+        assertFalse(redirected.getIssueInstant().isAfter(Instant.now()));
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(saml2handlerJKS.getSpKeypair().getPublicKey());
+        signature.update(query.substring(0, query.indexOf("&Signature=")).getBytes(StandardCharsets.UTF_8));
+        assertTrue(signature.verify(Base64.getDecoder().decode(params.get("Signature"))));
+    }
+
+    @Test
+    public void test_assertion_replay(){
+        assertNotNull(samlHandler.getReplayCache());
+        Assertion assertion = Helpers.buildSAMLObject(Assertion.class);
+        assertion.setID("_" + Helpers.generateSecureRandomId());
+        Instant notOnOrAfter = Instant.now().plusSeconds(300);
+        assertTrue(samlHandler.checkReplay(assertion, notOnOrAfter));
+        assertFalse(samlHandler.checkReplay(assertion, notOnOrAfter));
+
+        // the shared cache is asked for the IDs unknown locally
+        AssertionReplayCache sharedCache = Mockito.mock(AssertionReplayCache.class);
+        osgiContext.registerService(AssertionReplayCache.class, sharedCache);
+        Assertion other = Helpers.buildSAMLObject(Assertion.class);
+        other.setID("_" + Helpers.generateSecureRandomId());
+        assertFalse(samlHandler.checkReplay(other, notOnOrAfter));
+        Mockito.verify(sharedCache).checkAndRecord(other.getID(), notOnOrAfter);
+
+        // assertions without ID are rejected
+        assertFalse(samlHandler.checkReplay(Helpers.buildSAMLObject(Assertion.class), notOnOrAfter));
+    }
+
     @Test
     public void test_decodeHttpPostSamlResp(){
         SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
@@ -261,6 +681,21 @@ public class OsgiSamlTest {
         Helpers.buildSAMLObject(Resource.class);
     }
 
+    @Test
+    public void test_typedBuilder(){
+        Helpers.TypedBuilder<Issuer> builder = Helpers.typedBuilder(Issuer.class);
+        Issuer issuer = builder.build();
+        assertEquals(Issuer.DEFAULT_ELEMENT_NAME, issuer.getElementQName());
+        assertNotSame(issuer, builder.build());
+        assertEquals(Issuer.DEFAULT_ELEMENT_NAME, Helpers.buildSAMLObject(Issuer.class).getElementQName());
+        try {
+            Helpers.typedBuilder(Resource.class).build();
+            fail("no SAML object type");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void test_withJKS() throws NoSuchAlgorithmException, CertificateException, CertIOException, OperatorCreationException, KeyStoreException {
         assertEquals("./target/exampleSaml2.jks", saml2handlerJKS.getJksFileLocation());
@@ -284,6 +719,65 @@ public class OsgiSamlTest {
         assertEquals(saml2handlerJKS.getSpKeypair().getPublicKey().toString(), spX509Cred.getPublicKey().toString());
     }
 
+    @Test
+    public void test_JKS_credentials_cached() throws IOException {
+        BasicX509Credential spX509Cred = KeyPairCredentials
+            .getCredential( saml2handlerJKS.getJksFileLocation(),
+                saml2handlerJKS.getJksStorePassword().toCharArray(),
+                saml2handlerJKS.getSpKeysAlias(),
+                saml2handlerJKS.getSpKeysPassword().toCharArray()
+            );
+        // decoded once and shared with the activated handler
+        assertSame(saml2handlerJKS.getSpKeypair(), spX509Cred);
+        assertSame(saml2handlerJKS.getIdpVerificationCert(), VerifySignatureCredentials.getCredential(
+                saml2handlerJKS.getJksFileLocation(),
+                saml2handlerJKS.getJksStorePassword().toCharArray(),
+                saml2handlerJKS.getIdpCertAlias()));
+
+        // a new keystore file is loaded again
+        JKSHelper.addTestingCertsToKeystore(testKeyStore);
+        File jks = new File(saml2handlerJKS.getJksFileLocation());
+        jks.setLastModified(jks.lastModified() + 2000L);
+        BasicX509Credential reloaded = KeyPairCredentials
+            .getCredential( saml2handlerJKS.getJksFileLocation(),
+                saml2handlerJKS.getJksStorePassword().toCharArray(),
+                saml2handlerJKS.getSpKeysAlias(),
+                saml2handlerJKS.getSpKeysPassword().toCharArray()
+            );
+        assertNotSame(spX509Cred, reloaded);
+        assertNotEquals(spX509Cred.getPublicKey(), reloaded.getPublicKey());
+    }
+
+    @Test
+    public void test_parser_pool() throws Exception {
+        Saml2ParserPool parserPool = samlHandler.getParserPool();
+        assertNotNull(parserPool);
+        assertEquals(50, parserPool.getMaxPoolSize());
+        assertTrue(parserPool.isReuseBuilders());
+        String xml = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>";
+        long created = Saml2Metrics.REGISTRY.meter(Saml2ParserPool.CREATED).getCount();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Response", parserPool.parse(new StringReader(xml)).getDocumentElement().getLocalName());
+        }
+        // the first builder is reused
+        assertEquals(created + 1, Saml2Metrics.REGISTRY.meter(Saml2ParserPool.CREATED).getCount());
+        assertEquals(0, Saml2Metrics.REGISTRY.counter(Saml2ParserPool.IN_USE).getCount());
+
+        Saml2ParserPool noReuse = new Saml2ParserPool(10, false);
+        created = Saml2Metrics.REGISTRY.meter(Saml2ParserPool.CREATED).getCount();
+        for (int i = 0; i < 3; i++) {
+            noReuse.parse(new StringReader(xml));
+        }
+        assertEquals(created + 3, Saml2Metrics.REGISTRY.meter(Saml2ParserPool.CREATED).getCount());
+
+        try {
+            parserPool.parse(new StringReader("<!DOCTYPE r [<!ENTITY x SYSTEM \"file:///etc/passwd\">]><r>&x;</r>"));
+            fail("DTDs must be rejected");
+        } catch (XMLParserException e) {
+            // expected
+        }
+    }
+
     @Test (expected = SAML2RuntimeException.class)
     public void test_JKS_bad_sp_KeyPair() {
         BasicX509Credential spX509Cred = KeyPairCredentials
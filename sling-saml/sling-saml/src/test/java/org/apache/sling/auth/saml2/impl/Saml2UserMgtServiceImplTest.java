@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.spi.security.ConfigurationParameters;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.auth.saml2.Saml2User;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class Saml2UserMgtServiceImplTest {
+
+    private static final int THREADS = 16;
+
+    /**
+     * The folder of the groups configured in the mocked repository.
+     */
+    private static final String GROUPS_PATH = "/var/saml2/groups";
+
+    @Rule
+    public final OsgiContext osgiContext = new OsgiContext();
+
+    /**
+     * The users saved in the mocked repository.
+     */
+    private final Map<String, User> repository = new ConcurrentHashMap<>();
+    private final AtomicInteger creations = new AtomicInteger();
+    private final AtomicInteger conflicts = new AtomicInteger();
+
+    /**
+     * The groups of the mocked repository and the lookups of the groups by ID and by path.
+     */
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final List<String> groupLookups = new CopyOnWriteArrayList<>();
+    private final List<String> pathLookups = new CopyOnWriteArrayList<>();
+    private final List<EventListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<String> listenerRoots = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setup() throws Exception {
+        ResourceResolverFactory factory = Mockito.mock(ResourceResolverFactory.class);
+        when(factory.getServiceResourceResolver(Mockito.any())).thenAnswer(invocation -> {
+            ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+            JackrabbitSession session = mockSession();
+            when(resolver.adaptTo(Session.class)).thenReturn(session);
+            return resolver;
+        });
+        osgiContext.registerService(ResourceResolverFactory.class, factory);
+    }
+
+    /**
+     * @return a session of the mocked repository; a user created by the session is visible to
+     * other sessions after its save, the save fails if another session saved the user before
+     */
+    private JackrabbitSession mockSession() throws Exception {
+        Map<String, User> created = new ConcurrentHashMap<>();
+        JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        UserManager userManager = Mockito.mock(UserManager.class);
+        when(session.getUserManager()).thenReturn(userManager);
+        when(session.getValueFactory()).thenReturn(Mockito.mock(ValueFactory.class));
+        when(session.hasPendingChanges()).thenReturn(true);
+        when(userManager.getAuthorizable(Mockito.anyString())).thenAnswer(invocation -> {
+            String userId = invocation.getArgument(0);
+            if (groups.containsKey(userId) || userId.startsWith("g-")) {
+                groupLookups.add(userId);
+                return groups.get(userId);
+            }
+            User user = created.get(userId);
+            return user != null ? user : repository.get(userId);
+        });
+        when(userManager.getAuthorizableByPath(Mockito.anyString())).thenAnswer(invocation -> {
+            String path = invocation.getArgument(0);
+            pathLookups.add(path);
+            return groups.get(path.substring(path.lastIndexOf('/') + 1));
+        });
+        Workspace workspace = Mockito.mock(Workspace.class);
+        ObservationManager observationManager = Mockito.mock(ObservationManager.class);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(workspace.getObservationManager()).thenReturn(observationManager);
+        Mockito.doAnswer(invocation -> {
+            listeners.add(invocation.getArgument(0));
+            return listenerRoots.add(invocation.getArgument(2));
+        }).when(observationManager)
+                .addEventListener(Mockito.any(), Mockito.anyInt(), Mockito.anyString(), Mockito.anyBoolean(),
+                        Mockito.any(), Mockito.any(), Mockito.anyBoolean());
+        when(userManager.createUser(Mockito.anyString(), Mockito.any(), Mockito.any(Principal.class), Mockito.any()))
+                .thenAnswer(invocation -> {
+                    String userId = invocation.getArgument(0);
+                    creations.incrementAndGet();
+                    // widen the window between the lookup and the save of the user
+                    Thread.sleep(5);
+                    User user = Mockito.mock(User.class);
+                    when(user.getID()).thenReturn(userId);
+                    when(user.declaredMemberOf()).thenReturn(Collections.emptyIterator());
+                    created.put(userId, user);
+                    return user;
+                });
+        Mockito.doAnswer(invocation -> {
+            for (Map.Entry<String, User> user : created.entrySet()) {
+                if (repository.putIfAbsent(user.getKey(), user.getValue()) != null) {
+                    conflicts.incrementAndGet();
+                    created.clear();
+                    throw new InvalidItemStateException("user '" + user.getKey() + "' created concurrently");
+                }
+            }
+            created.clear();
+            return null;
+        }).when(session).save();
+        Mockito.doAnswer(invocation -> {
+            if (!(Boolean) invocation.getArgument(0)) {
+                created.clear();
+            }
+            return null;
+        }).when(session).refresh(Mockito.anyBoolean());
+        return session;
+    }
+
+    private Saml2UserMgtServiceImpl activate(boolean singleCommit) {
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("syncSingleCommit", singleCommit);
+        props.put("syncRetryBackoff", 1);
+        return osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+    }
+
+    @Test
+    public void parallelSyncOneCommitTest() throws Exception {
+        parallelSync(activate(true));
+    }
+
+    @Test
+    public void parallelSyncStepwiseTest() throws Exception {
+        parallelSync(activate(false));
+    }
+
+    private void parallelSync(Saml2UserMgtServiceImpl mgtService) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<User>> syncs = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            syncs.add(() -> {
+                start.await(10, TimeUnit.SECONDS);
+                Saml2User samlUser = new Saml2User("jdoe");
+                samlUser.addUserProperty("./profile/email", "jdoe@example.org");
+                return mgtService.performUserSynchronization(samlUser);
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<User>> results = new ArrayList<>();
+            for (Callable<User> sync : syncs) {
+                results.add(executor.submit(sync));
+            }
+            start.countDown();
+            for (Future<User> result : results) {
+                assertNotNull(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // the user is created once, no login fails or retries on a commit conflict
+        assertEquals(1, creations.get());
+        assertEquals(0, conflicts.get());
+        assertNotNull(repository.get("jdoe"));
+    }
+
+    private Group addGroup(String groupId) throws Exception {
+        Group group = Mockito.mock(Group.class);
+        when(group.getID()).thenReturn(groupId);
+        when(group.isGroup()).thenReturn(true);
+        when(group.getPath()).thenReturn(GROUPS_PATH + "/g/" + groupId);
+        groups.put(groupId, group);
+        return group;
+    }
+
+    private void fireEvent(int type, String path) throws Exception {
+        Event event = Mockito.mock(Event.class);
+        when(event.getType()).thenReturn(type);
+        when(event.getPath()).thenReturn(path);
+        EventIterator events = Mockito.mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        for (EventListener listener : listeners) {
+            listener.onEvent(events);
+        }
+    }
+
+    @Test
+    public void groupCacheTest() throws Exception {
+        UserConfiguration userConfiguration = Mockito.mock(UserConfiguration.class);
+        when(userConfiguration.getParameters()).thenReturn(ConfigurationParameters.of(UserConstants.PARAM_GROUP_PATH, GROUPS_PATH));
+        SecurityProvider securityProvider = Mockito.mock(SecurityProvider.class);
+        when(securityProvider.getConfiguration(UserConfiguration.class)).thenReturn(userConfiguration);
+        osgiContext.registerService(SecurityProvider.class, securityProvider);
+        Group synced = addGroup("g-synced");
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put("syncGroups", new String[]{"idp=g-synced"});
+        props.put("defaultGroups", new String[]{"g-default"});
+        Saml2UserMgtServiceImpl mgtService = osgiContext.registerInjectActivateService(new Saml2UserMgtServiceImpl(), props);
+        assertEquals(1, listeners.size());
+        assertEquals(Collections.singletonList(GROUPS_PATH), listenerRoots);
+        assertEquals(Arrays.asList("g-synced", "g-default"), groupLookups);
+
+        // a login binds the resolved group by its path, the missing group is not looked up
+        groupLookups.clear();
+        Saml2User samlUser = new Saml2User("jdoe");
+        samlUser.addGroupMembership("g-synced");
+        User user = mgtService.performUserSynchronization(samlUser);
+        assertNotNull(user);
+        Mockito.verify(synced).addMember(user);
+        assertEquals(Collections.singletonList(synced.getPath()), pathLookups);
+        assertTrue(groupLookups.isEmpty());
+
+        // changes within a group are ignored, an added node is relevant while a group is missing
+        fireEvent(Event.NODE_ADDED, synced.getPath() + "/rep:membersList");
+        assertTrue(groupLookups.isEmpty());
+        Group created = addGroup("g-default");
+        fireEvent(Event.NODE_ADDED, created.getPath());
+        assertEquals(Arrays.asList("g-synced", "g-default"), groupLookups);
+        pathLookups.clear();
+        groupLookups.clear();
+        mgtService.performUserSynchronization(new Saml2User("other"));
+        Mockito.verify(created).addMember(Mockito.any());
+        assertEquals(Collections.singletonList(created.getPath()), pathLookups);
+
+        // a removed group is missing after the reload
+        groups.remove("g-synced");
+        fireEvent(Event.NODE_REMOVED, synced.getPath());
+        assertEquals(Arrays.asList("g-synced", "g-default"), groupLookups);
+        groupLookups.clear();
+        fireEvent(Event.NODE_ADDED, created.getPath() + "/rep:membersList");
+        assertTrue(groupLookups.isEmpty());
+        fireEvent(Event.NODE_ADDED, GROUPS_PATH + "/g/g-other");
+        assertEquals(Arrays.asList("g-synced", "g-default"), groupLookups);
+
+        MockOsgi.deactivate(mgtService, osgiContext.bundleContext());
+
+        // groups outside the configured folder are observed as well
+        assertEquals(GROUPS_PATH, GroupCache.commonRoot(GROUPS_PATH, Collections.singletonList(GROUPS_PATH + "/a/g1")));
+        assertEquals("/var/saml2", GroupCache.commonRoot(GROUPS_PATH, Collections.singletonList("/var/saml2/groupsX/g1")));
+        assertEquals("/", GroupCache.commonRoot(GROUPS_PATH, Arrays.asList(GROUPS_PATH + "/g1", "/groups/g2")));
+    }
+
+    @Test
+    public void userLockTest() {
+        Saml2UserMgtServiceImpl mgtService = activate(true);
+        assertSame(mgtService.getUserLock("jdoe"), mgtService.getUserLock(new String("jdoe")));
+        int distinct = 0;
+        for (int i = 0; i < Saml2UserMgtServiceImpl.LOCK_STRIPES; i++) {
+            distinct += mgtService.getUserLock("user" + i) != mgtService.getUserLock("user" + (i + 1)) ? 1 : 0;
+        }
+        assertTrue(distinct > 0);
+    }
+}
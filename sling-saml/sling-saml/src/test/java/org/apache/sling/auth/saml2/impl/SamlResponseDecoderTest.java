@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import org.apache.sling.auth.saml2.Helpers;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.common.messaging.context.SAMLBindingContext;
+import org.opensaml.saml.saml2.core.Response;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Locale;
+
+import static org.apache.sling.auth.saml2.Activator.initializeOpenSaml;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SamlResponseDecoderTest {
+
+    private static String samlResponse;
+
+    @BeforeClass
+    public static void buildResponse() throws Exception {
+        initializeOpenSaml();
+        Response response = Helpers.buildSAMLObject(Response.class);
+        response.setID("_" + Helpers.generateSecureRandomId());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(Instant.now());
+        String xml = SerializeSupport.nodeToString(XMLObjectProviderRegistrySupport.getMarshallerFactory()
+                .getMarshaller(response).marshall(response));
+        samlResponse = Base64.getMimeEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpServletRequest postRequest(String body, boolean announceLength) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getContentType()).thenReturn("application/x-www-form-urlencoded; charset=UTF-8");
+        when(request.getContentLength()).thenReturn(announceLength ? bytes.length : -1);
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+        when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() {
+                return input.read();
+            }
+        });
+        return request;
+    }
+
+    private static String form(String relayState) throws IOException {
+        return "other=x%26y&SAMLResponse=" + URLEncoder.encode(samlResponse, "UTF-8")
+                + "&RelayState=" + URLEncoder.encode(relayState, "UTF-8");
+    }
+
+    @Test
+    public void streamingDecodeTest() throws Exception {
+        SamlResponseDecoder decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), 0, true);
+        HttpServletRequest request = postRequest(form("state+1/2"), true);
+        MessageContext messageContext = decoder.decode(request);
+        assertTrue(messageContext.getMessage() instanceof Response);
+        assertEquals("state+1/2", messageContext.getSubcontext(SAMLBindingContext.class).getRelayState());
+        verify(request, never()).getParameter("SAMLResponse");
+    }
+
+    @Test
+    public void upperCaseContentTypeTest() throws Exception {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            SamlResponseDecoder decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), 0, true);
+            HttpServletRequest request = postRequest(form("state"), true);
+            when(request.getContentType()).thenReturn("APPLICATION/X-WWW-FORM-URLENCODED");
+            assertTrue(decoder.decode(request).getMessage() instanceof Response);
+            verify(request, never()).getParameter("SAMLResponse");
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void announcedSizeTest() throws Exception {
+        String form = form("state");
+        SamlResponseDecoder decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), form.length() - 1, true);
+        HttpServletRequest request = postRequest(form, true);
+        try {
+            decoder.decode(request);
+            fail("oversized request accepted");
+        } catch (SamlResponseDecoder.SizeLimitExceededException e) {
+            // rejected before reading the body
+            verify(request, never()).getInputStream();
+        }
+    }
+
+    @Test
+    public void streamingSizeTest() throws Exception {
+        String form = form("state");
+        SamlResponseDecoder decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), form.length() / 2, true);
+        try {
+            decoder.decode(postRequest(form, false));
+            fail("oversized request accepted");
+        } catch (SamlResponseDecoder.SizeLimitExceededException e) {
+            // expected
+        }
+        // the limit covers the complete form
+        decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), form.length(), true);
+        assertTrue(decoder.decode(postRequest(form, false)).getMessage() instanceof Response);
+    }
+
+    @Test
+    public void parameterFallbackTest() throws Exception {
+        HttpServletRequest request = postRequest("", false);
+        when(request.getParameter("SAMLResponse")).thenReturn(samlResponse);
+        when(request.getParameter("RelayState")).thenReturn("state");
+        SamlResponseDecoder decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), 0, true);
+        MessageContext messageContext = decoder.decode(request);
+        assertTrue(messageContext.getMessage() instanceof Response);
+        assertEquals("state", messageContext.getSubcontext(SAMLBindingContext.class).getRelayState());
+
+        decoder = new SamlResponseDecoder(new Saml2ParserPool(2, true), samlResponse.length() - 1, true);
+        try {
+            decoder.decode(request);
+            fail("oversized parameter accepted");
+        } catch (SamlResponseDecoder.SizeLimitExceededException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.auth.saml2.impl;
+
+import org.apache.sling.auth.saml2.Saml2User;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UserSyncQueueTest {
+
+    private final List<Saml2User> synchronizedUsers = new CopyOnWriteArrayList<>();
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private void synchronize(Saml2User samlUser) {
+        threads.add(Thread.currentThread());
+        if ("blocking".equals(samlUser.getId())) {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronizedUsers.add(samlUser);
+    }
+
+    @Test
+    public void coalesceTest() throws InterruptedException {
+        UserSyncQueue queue = new UserSyncQueue(1, 10, this::synchronize);
+        long coalesced = Saml2Metrics.REGISTRY.meter(UserSyncQueue.COALESCED).getCount();
+        queue.submit(new Saml2User("blocking"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Saml2User first = new Saml2User("jdoe");
+        Saml2User second = new Saml2User("jdoe");
+        queue.submit(first);
+        queue.submit(second);
+        queue.submit(new Saml2User("other"));
+        assertEquals(2, queue.size());
+        assertEquals(coalesced + 1, Saml2Metrics.REGISTRY.meter(UserSyncQueue.COALESCED).getCount());
+        release.countDown();
+        queue.close();
+        assertEquals(0, queue.size());
+        assertEquals(3, synchronizedUsers.size());
+        // the latest data of a user is synchronized once
+        assertSame(second, synchronizedUsers.get(1));
+        assertEquals("other", synchronizedUsers.get(2).getId());
+    }
+
+    @Test
+    public void callerRunsTest() throws InterruptedException {
+        UserSyncQueue queue = new UserSyncQueue(1, 1, this::synchronize);
+        long callerRuns = Saml2Metrics.REGISTRY.meter(UserSyncQueue.CALLER_RUNS).getCount();
+        queue.submit(new Saml2User("blocking"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        queue.submit(new Saml2User("queued"));
+        // the queue is full, the user is synchronized by the submitting thread
+        queue.submit(new Saml2User("jdoe"));
+        assertEquals("jdoe", synchronizedUsers.get(0).getId());
+        assertSame(Thread.currentThread(), threads.get(1));
+        assertEquals(callerRuns + 1, Saml2Metrics.REGISTRY.meter(UserSyncQueue.CALLER_RUNS).getCount());
+        release.countDown();
+        queue.close();
+        assertEquals(3, synchronizedUsers.size());
+    }
+
+    @Test
+    public void closeTest() {
+        UserSyncQueue queue = new UserSyncQueue(2, 10, this::synchronize);
+        queue.close();
+        queue.submit(new Saml2User("jdoe"));
+        assertEquals(1, synchronizedUsers.size());
+        assertSame(Thread.currentThread(), threads.get(0));
+    }
+}